@@ -8,10 +8,20 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.sql.SQLTimeoutException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /** You must use a database that supports serializable transactions: e.g Innodb, SQL Server. */
 public class Db {
@@ -20,37 +30,52 @@ public class Db {
     long lastActiveMillis = System.currentTimeMillis();
     public void updateLastActive() {lastActiveMillis = System.currentTimeMillis();}
 
-    final LinkedHashMap<String, PreparedStatement> statements;
+    final StatementCache statements;
+    final StatementCache streamingStatements; //forward-only, for stream()
 
     final String url; //for reconnecting
-    public Db(String url) throws SQLException {
-        this.url = url;
-        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
-            protected boolean removeEldsestEntry(Entry<String, PreparedStatement> eldest) {
-                try {
-                    if (size() <= 16) return false;
-                    else { eldest.getValue().close(); return true; }
-                } catch (SQLException e) { throw new RuntimeException(e.getMessage(), e); }
-            }
-        };
+    final boolean readOnly;
+    Pool pool = null; //the pool this connection belongs to, if any.
+    boolean readOnlyUntilPutBack = false; //a primary connection lent by RoutingPool.takeReadOnly()
+    boolean suspect = false; //failed when it was put back; Pool.take() pings it before lending it again.
+
+    public Db(String url) throws SQLException { this(url, 16, false, false); }
+
+    /**
+     * @param statementCacheSize the number of PreparedStatements kept open on this connection.
+     * @param normalizeSql share statements between queries that differ only in whitespace.
+     * @param readOnly connect read-only at READ COMMITTED instead of SERIALIZABLE, e.g. to a replica.
+     */
+    public Db(String url, int statementCacheSize, boolean normalizeSql, boolean readOnly)
+    throws SQLException {
+        this.url = url; this.readOnly = readOnly;
+        statements = new StatementCache(statementCacheSize, normalizeSql, ResultSet.TYPE_SCROLL_INSENSITIVE);
+        streamingStatements = new StatementCache(statementCacheSize, normalizeSql, ResultSet.TYPE_FORWARD_ONLY);
+        //MySQL only streams rows one by one when the fetch size is Integer.MIN_VALUE.
+        streamFetchSize = url.startsWith("jdbc:mysql:") ? Integer.MIN_VALUE : 1000;
     }
 
+    public StatementCache getStatementCache() { return statements; }
+
     Connection connectTo(String url) throws SQLException {
         final Connection newConnection = DriverManager.getConnection(url);
         newConnection.setAutoCommit(false);
-        newConnection.setTransactionIsolation(newConnection.TRANSACTION_SERIALIZABLE);
+        if (readOnly) {
+            newConnection.setReadOnly(true);
+            newConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        } else newConnection.setTransactionIsolation(newConnection.TRANSACTION_SERIALIZABLE);
         return newConnection;
     }
 
     /** Close the connection and all associated PreparedStatement objects. */
     void close() throws SQLException {
         try {connection.close();} catch (Exception e) {}
-        for (PreparedStatement s: statements.values()) s.close();
-        statements.clear();
         connection = null;
+        try { statements.close(); } finally { streamingStatements.close(); }
     }
 
     boolean dirty = false;
+    boolean wrote = false; //since the transaction began; see QueryCache.query()
 
     /**
      * Pings the connection if it's been inactive for 15 seconds or more.
@@ -64,26 +89,30 @@ public class Db {
         }
     }
 
+    /** Ping the connection, replacing it if it's missing or no longer valid. */
+    void revalidate(int timeoutSeconds) throws SQLException {
+        if (connection != null) {
+            if (connection.isValid(timeoutSeconds)) { updateLastActive(); suspect = false; return; }
+            else close();
+        }
+        connection = connectTo(url); updateLastActive(); suspect = false;
+    }
+
     public void commit() throws SQLException {
         try { if (dirty) connection.commit(); }
-        finally { dirty = false; updateLastActive(); }
+        finally { dirty = false; wrote = false; updateLastActive(); closeRetired(); }
     }
 
     public void rollback() throws SQLException {
         try { if (dirty) connection.rollback(); }
-        finally { dirty = false; updateLastActive(); }
+        finally { dirty = false; wrote = false; updateLastActive(); closeRetired(); }
     }
 
+    /** Statements evicted from the caches during the transaction are no longer in use. */
+    private void closeRetired() { statements.closeRetired(); streamingStatements.closeRetired(); }
+
     PreparedStatement getPreparedStatement(String query) throws SQLException {
-        PreparedStatement p = statements.get(query);
-        if (p == null) {
-            p = connection.prepareStatement(query,
-                    ResultSet.TYPE_SCROLL_INSENSITIVE,
-                    ResultSet.CONCUR_READ_ONLY,
-                    ResultSet.CLOSE_CURSORS_AT_COMMIT);
-            statements.put(query, p);
-        }
-        return p;
+        return statements.get(connection, query);
     }
 
     static void setParams(PreparedStatement p, Object[] params) throws SQLException {
@@ -109,14 +138,143 @@ public class Db {
     
     public int exec(String sql, Object... params) throws SQLException {
         PreparedStatement p = getPreparedStatement(sql);
-        setParams(p, params); dirty = true; updateLastActive();
-        return p.executeUpdate();
+        setParams(p, params); dirty = true; wrote = true; updateLastActive();
+        final int n = p.executeUpdate();
+        if (queryCache != null) queryCache.invalidate(sql);
+        return n;
     }
 
     public int exec(String sql, List params) throws SQLException {
         PreparedStatement p = getPreparedStatement(sql);
-        setParams(p, params); dirty = true; updateLastActive();
-        return p.executeUpdate();
+        setParams(p, params); dirty = true; wrote = true; updateLastActive();
+        final int n = p.executeUpdate();
+        if (queryCache != null) queryCache.invalidate(sql);
+        return n;
+    }
+
+    QueryCache queryCache = null;
+
+    /** Cache the results of cachedQuery() in queryCache, and let exec() invalidate them. */
+    public void setQueryCache(QueryCache queryCache) { this.queryCache = queryCache; }
+
+    /**
+     * Like query(), but returns a copy of the rows, served from the query cache when possible.
+     * Without a query cache, this always runs the query.
+     */
+    public QueryCache.Rows cachedQuery(String sql, Object... params) throws SQLException {
+        if (queryCache != null) return queryCache.query(this, sql, params);
+        final ResultSet rs = query(sql, params);
+        try { return new QueryCache.Rows(rs); } finally { rs.close(); }
+    }
+
+    public QueryCache.Rows cachedQuery(String sql, List<?> params) throws SQLException {
+        return cachedQuery(sql, params.toArray());
+    }
+
+    /** Receives the rows of stream() one at a time.  Return false to stop early. */
+    public interface RowHandler {
+        public boolean row(ResultSet row) throws SQLException;
+    }
+
+    int streamFetchSize;
+
+    /** The fetch size hint of stream().  Integer.MIN_VALUE means row by row on MySQL. */
+    public void setStreamFetchSize(int fetchSize) { this.streamFetchSize = fetchSize; }
+
+    /**
+     * Run a query and pass each row to handler as it arrives, without loading the whole result
+     * into memory.  Returns the number of rows handled.  On MySQL, no other statement may run on
+     * this Db until stream() returns.  Parameters come before the handler, as in query().
+     */
+    public int stream(String sql, Object[] params, RowHandler handler) throws SQLException {
+        PreparedStatement p = streamingStatements.get(connection, sql);
+        setParams(p, params);
+        return stream(p, handler);
+    }
+
+    public int stream(String sql, List<?> params, RowHandler handler) throws SQLException {
+        PreparedStatement p = streamingStatements.get(connection, sql);
+        setParams(p, params);
+        return stream(p, handler);
+    }
+
+    private int stream(PreparedStatement p, RowHandler handler) throws SQLException {
+        dirty = true; updateLastActive();
+        p.setFetchSize(streamFetchSize);
+        final ResultSet rs = p.executeQuery();
+        int n = 0;
+        try { while (rs.next()) { n++; if (!handler.row(rs)) break; } }
+        finally { rs.close(); updateLastActive(); }
+        return n;
+    }
+
+    int batchSize = 500;
+
+    /** The number of rows execBatch and Batch send to the database per round trip. */
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+
+    /** Execute sql once for each row of params.  Returns the update count of each row. */
+    public int[] execBatch(String sql, Iterable<Object[]> rows) throws SQLException {
+        final Batch batch = batch(sql);
+        for (Object[] row: rows) batch.add(row);
+        return batch.execute();
+    }
+
+    public int[] execBatch(String sql, List<? extends List<?>> rows) throws SQLException {
+        final Batch batch = batch(sql);
+        for (List<?> row: rows) batch.add(row);
+        return batch.execute();
+    }
+
+    /** Usage: db.batch(sql).add(a, b).add(c, d).execute() */
+    public Batch batch(String sql) throws SQLException {
+        return new Batch(sql, getPreparedStatement(sql));
+    }
+
+    /**
+     * Rows of a batched statement, sent to the database batchSize rows at a time.
+     * Don't run the same sql on this Db until the batch is executed: they share a PreparedStatement.
+     * Execute it before commit() or rollback(), which may close that statement; see StatementCache.
+     */
+    public class Batch {
+        private final String sql; private final PreparedStatement p;
+        private int pending = 0;
+        private int[] counts = new int[16]; private int nCounts = 0;
+
+        Batch(String sql, PreparedStatement p) { this.sql = sql; this.p = p; }
+
+        public Batch add(Object... params) throws SQLException {
+            setParams(p, params); return added();
+        }
+
+        public Batch add(List<?> params) throws SQLException {
+            setParams(p, params); return added();
+        }
+
+        private Batch added() throws SQLException {
+            try { p.addBatch(); } catch (SQLException e) { p.clearBatch(); pending = 0; throw e; }
+            dirty = true;
+            if (++pending >= batchSize) flush();
+            return this;
+        }
+
+        private void flush() throws SQLException {
+            wrote = true; updateLastActive();
+            final int[] c;
+            try { c = p.executeBatch(); }
+            catch (SQLException e) { p.clearBatch(); throw e; }
+            finally { pending = 0; }
+            if (queryCache != null) queryCache.invalidate(sql); //after the update, as in exec().
+            if (nCounts + c.length > counts.length)
+                counts = Arrays.copyOf(counts, Math.max(counts.length * 2, nCounts + c.length));
+            System.arraycopy(c, 0, counts, nCounts, c.length); nCounts += c.length;
+        }
+
+        /** Send the remaining rows and return the update count of every row added. */
+        public int[] execute() throws SQLException {
+            if (pending > 0) flush();
+            return Arrays.copyOf(counts, nCounts);
+        }
     }
 
     private Lazy.Result lazyQuery(final PreparedStatement p) {
@@ -140,34 +298,85 @@ public class Db {
     }
      
     public static class Pool {
-        private final ArrayList<Db> connections;
+        private final ConcurrentLinkedDeque<Db> idle = new ConcurrentLinkedDeque<Db>();
+        private final Semaphore available; //one permit per idle connection; fair, so waiters are FIFO.
+        final Db[] all;
+
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong takes = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        private volatile ScheduledExecutorService maintenance = null;
+        private final ConcurrentLinkedQueue<Db> broken = new ConcurrentLinkedQueue<Db>();
+        static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+        public Pool(String jdbcUrl, int size) throws SQLException { this(jdbcUrl, size, 16, false, false); }
 
-        public Pool(String jdbcUrl, int size) throws SQLException {
-            connections = new ArrayList(size);
-            for (int i = 0; i<size; i++) connections.add(new Db(jdbcUrl));
+        /** See Db(url, statementCacheSize, normalizeSql, readOnly) */
+        public Pool(String jdbcUrl, int size, int statementCacheSize, boolean normalizeSql, boolean readOnly)
+        throws SQLException {
+            all = new Db[size];
+            for (int i = 0; i<size; i++) {
+                all[i] = new Db(jdbcUrl, statementCacheSize, normalizeSql, readOnly);
+                all[i].pool = this;
+                idle.addLast(all[i]);
+            }
+            available = new Semaphore(size, true);
         }
 
         public static Pool mysql(String host, int port, String user, String password, String db)
+        throws Exception {
+            String url = mysqlUrl(host, port, user, password, db);
+            System.out.println(url);
+            int size = Runtime.getRuntime().availableProcessors() * 2;
+            return new Pool(url, size);
+        }
+
+        static String mysqlUrl(String host, int port, String user, String password, String db)
         throws Exception {
             Class.forName ("com.mysql.jdbc.Driver").newInstance();
-            String url = "jdbc:mysql://" + host + ":" + port + "/" + db +"?autoReconnect=true" +
+            return "jdbc:mysql://" + host + ":" + port + "/" + db +"?autoReconnect=true" +
                                "&zeroDateTimeBehavior=convertToNull" +
                                "&tinyInt1isBit=false" +
                                "&user=" + user +
                                "&password=" + password;
-            System.out.println(url);
-            int size = Runtime.getRuntime().availableProcessors() * 2;
-            return new Pool(url, size);
         }
 
-        /** Retrieve a database connection from the pool and begin a new transaction. */
-        public synchronized Db take() throws SQLException {
-            while(connections.size() == 0) {
-                try { this.wait(); }
-                catch (InterruptedException e) {}
+        /** Thrown by take(timeout) when no connection became available in time. */
+        public static class TimeoutException extends SQLTimeoutException {
+            private static final long serialVersionUID = 1L;
+
+        public TimeoutException(long timeoutMillis) {
+                super("no connection available after " + timeoutMillis + "ms");
             }
-            Db db = connections.remove(connections.size() - 1); //LIFO
-            db.begin();
+        }
+
+        /** Retrieve a database connection from the pool and begin a new transaction. */
+        public Db take() throws SQLException { return take(Long.MAX_VALUE); }
+
+        /**
+         * Retrieve a database connection from the pool and begin a new transaction.
+         * Waiters are served first come, first served.  Gives up after timeoutMillis.
+         */
+        public Db take(long timeoutMillis) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                if (!available.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new TimeoutException(timeoutMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a connection", e);
+            } finally { waitNanos.addAndGet(System.nanoTime() - start); }
+
+            final Db db = idle.pollLast(); //LIFO: the most recently used connection is the warmest.
+            try {
+                if (db.suspect) db.revalidate(VALIDATION_TIMEOUT_SECONDS);
+                else db.begin();
+            } catch (SQLException e) { idle.addLast(db); available.release(); throw e; }
+            takes.incrementAndGet(); active.incrementAndGet();
             return db;
         }
 
@@ -178,19 +387,235 @@ public class Db {
         }
 
         /** Return the database connection to pool and commit it if necessary. */
-        public synchronized void putBack (Db db) {
+        public void putBack (Db db) {
             // a no-op if the transaction was committed
             try { db.rollback(); } 
-            catch (SQLException e) { e.printStackTrace(); } //we'll get another chance to handle this.
+            catch (SQLException e) { db.suspect = true; e.printStackTrace(); } //take() checks it again.
+            if (db.readOnlyUntilPutBack) {
+                db.readOnlyUntilPutBack = false;
+                try { if (db.connection != null) db.connection.setReadOnly(false); }
+                catch (SQLException e) { //it may still be read-only: take() opens a new one instead.
+                    e.printStackTrace();
+                    try { db.close(); } catch (SQLException x) {}
+                }
+            }
 
-            connections.add(db); if (connections.size() <= 1) this.notify();
+            active.decrementAndGet();
+            idle.addLast(db); available.release();
         }
 
         /** Return the database connection if and only if one was taken. */
         public void putBack (Lazy.DB db) {
             if (db.computed()) putBack(db.getIfSet());
         }
+
+        /**
+         * Connect every pooled connection now, then check idle connections in the background:
+         * every periodMillis, connections unused for idleMillis or more are pinged and broken ones
+         * are replaced.  Broken connections stay out of the pool until they reconnect, so take()
+         * rarely has to ping a connection itself.  Maintenance only takes connections nobody is
+         * waiting for.
+         */
+        public synchronized void startMaintenance(final long idleMillis, long periodMillis) {
+            if (maintenance != null) return;
+            for (int n = all.length; n > 0; n--) {
+                if (!tryAcquireUnwanted()) break; //connections are in use or wanted; check the rest later.
+                final Db db = idle.pollFirst();
+                try { db.revalidate(VALIDATION_TIMEOUT_SECONDS); idle.addLast(db); available.release(); }
+                catch (SQLException e) { broken.add(db); }
+            }
+            maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "salt4j-db-pool-maintenance"); t.setDaemon(true); return t;
+                }
+            });
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                public void run() { maintain(idleMillis); }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stop checking connections, waiting for a check in progress to finish.  Broken connections
+         * go back to the pool without a connection, so take() reconnects them itself from now on.
+         */
+        public synchronized void stopMaintenance() {
+            if (maintenance == null) return;
+            maintenance.shutdownNow(); //maintain() stops after the connection it is checking.
+            boolean interrupted = false;
+            while (true) {
+                try { if (maintenance.awaitTermination(1, TimeUnit.SECONDS)) break; }
+                catch (InterruptedException e) { interrupted = true; }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            maintenance = null;
+            Db db;
+            while ((db = broken.poll()) != null) {
+                if (db.connection != null) try { db.close(); } catch (SQLException e) {}
+                idle.addLast(db); available.release();
+            }
+        }
+
+        /** Retry broken connections, then ping idle connections from least to most recently used. */
+        void maintain(long idleMillis) {
+            final Thread self = Thread.currentThread();
+            for (int n = broken.size(); n > 0 && !self.isInterrupted(); n--) {
+                final Db db = broken.poll();
+                try { db.revalidate(VALIDATION_TIMEOUT_SECONDS); idle.addLast(db); available.release(); }
+                catch (SQLException e) { broken.add(db); }
+            }
+            final long now = System.currentTimeMillis();
+            for (int n = all.length; n > 0 && !self.isInterrupted(); n--) {
+                if (!tryAcquireUnwanted()) return; //everything is taken, or wanted by take().
+                final Db db = idle.pollFirst();
+                if (db.connection != null && now - db.lastActiveMillis < idleMillis) {
+                    idle.addFirst(db); available.release(); return; //the rest were used more recently.
+                }
+                try { db.revalidate(VALIDATION_TIMEOUT_SECONDS); idle.addLast(db); available.release(); }
+                catch (SQLException e) { broken.add(db); }
+            }
+        }
+
+        /** An idle connection's permit, unless take() is waiting for one: tryAcquire() would barge. */
+        private boolean tryAcquireUnwanted() {
+            try { return available.tryAcquire(0, TimeUnit.NANOSECONDS); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return false; }
+        }
+
+        public int size() { return all.length; }
+
+        /** Connections currently taken. */
+        public int getActive() { return active.get(); }
+
+        /** Connections sitting in the pool. */
+        public int getIdle() { return available.availablePermits(); }
+
+        /** An estimate of the number of threads blocked in take(). */
+        public int getWaiting() { return available.getQueueLength(); }
+
+        public long getTakes() { return takes.get(); }
+
+        public long getTimeouts() { return timeouts.get(); }
+
+        /** See Db.setQueryCache() */
+        public void setQueryCache(QueryCache queryCache) { for (Db db: all) db.setQueryCache(queryCache); }
+
+        private ExecutorService groupExecutor = null;
+
+        /**
+         * Start a group of queries that run concurrently on this pool's connections.
+         * Each query waits at most takeTimeoutMillis for a connection.
+         */
+        public QueryGroup group(long takeTimeoutMillis) {
+            synchronized (this) {
+                if (groupExecutor == null) groupExecutor = Executors.newFixedThreadPool(all.length,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "salt4j-db-query-group"); t.setDaemon(true); return t;
+                        }
+                    });
+            }
+            return new QueryGroup(this, groupExecutor, takeTimeoutMillis);
+        }
+
+        public QueryGroup group() { return group(10000); }
+
+        /** Connections held out of the pool by maintenance until they can reconnect. */
+        public int getBroken() { return broken.size(); }
+
+        /** Statement cache hits summed over every connection, streaming statements included. */
+        public long getStatementHits() {
+            long n = 0; for (Db db: all) n += db.statements.hits + db.streamingStatements.hits; return n;
+        }
+
+        public long getStatementMisses() {
+            long n = 0; for (Db db: all) n += db.statements.misses + db.streamingStatements.misses; return n;
+        }
+
+        public long getStatementEvictions() {
+            long n = 0; for (Db db: all) n += db.statements.evictions + db.streamingStatements.evictions; return n;
+        }
+
+        /** Total time spent by all threads waiting in take(), including timed out waits. */
+        public long getWaitNanos() { return waitNanos.get(); }
+    }
+    /**
+     * Sends read-only transactions to replica pools, round robin, and everything else to the primary.
+     * A read-only transaction falls back to the primary when no replica yields a working connection
+     * within replicaWaitMillis.  Any JDBC url works for either side, so two embedded databases
+     * (e.g. H2 or Derby files) can stand in for a primary and a replica when testing.
+     */
+    public static class RoutingPool {
+        public final Pool primary;
+        private final Pool[] replicas;
+        private final long replicaWaitMillis;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicLongArray downUntil; //per replica, in System.nanoTime()
+        private volatile long downNanos = TimeUnit.SECONDS.toNanos(5);
+
+        /** The replica pools should be read-only: see Pool(url, size, cacheSize, normalize, readOnly) */
+        public RoutingPool(Pool primary, long replicaWaitMillis, Pool... replicas) {
+            this.primary = primary; this.replicaWaitMillis = replicaWaitMillis; this.replicas = replicas;
+            downUntil = new AtomicLongArray(replicas.length);
+        }
+
+        /** How long to skip a replica that failed to connect.  5 seconds by default. */
+        public void setReplicaBackoff(long millis) { downNanos = TimeUnit.MILLISECONDS.toNanos(millis); }
+
+        /** A primary with one read-only pool per replica host, all the same size as Pool.mysql(). */
+        public static RoutingPool mysql(String host, int port, String user, String password, String db,
+                                        String... replicaHosts) throws Exception {
+            int size = Runtime.getRuntime().availableProcessors() * 2;
+            Pool[] replicas = new Pool[replicaHosts.length];
+            for (int i = 0; i < replicas.length; i++) replicas[i] =
+                    new Pool(Pool.mysqlUrl(replicaHosts[i], port, user, password, db), size, 16, false, true);
+            return new RoutingPool(new Pool(Pool.mysqlUrl(host, port, user, password, db), size),
+                                   50, replicas);
+        }
+
+        /** Retrieve a connection to the primary and begin a new transaction. */
+        public Db take() throws SQLException { return primary.take(); }
+
+        public Db take(long timeoutMillis) throws SQLException { return primary.take(timeoutMillis); }
+
+        /**
+         * Retrieve a connection to a replica, or to the primary if none is available.  A replica
+         * that fails to connect is skipped for the backoff period.  A primary connection is set
+         * read-only until it is put back, but keeps the primary's SERIALIZABLE isolation.
+         */
+        public Db takeReadOnly() throws SQLException {
+            final int n = replicas.length;
+            final int first = next.getAndIncrement() & 0x7FFFFFFF;
+            for (int i = 0; i < n; i++) {
+                final int r = (first + i) % n;
+                final long until = downUntil.get(r);
+                if (until != 0 && System.nanoTime() - until < 0) continue; //down.
+                try { return replicas[r].take(replicaWaitMillis); }
+                catch (Pool.TimeoutException e) {} //busy: try the next one.
+                catch (SQLException e) { downUntil.set(r, System.nanoTime() + downNanos); } //down.
+            }
+            final Db db = primary.take();
+            try { db.connection.setReadOnly(true); db.readOnlyUntilPutBack = true; }
+            catch (SQLException e) { primary.putBack(db); throw e; }
+            return db;
+        }
+
+        public Lazy.DB lazyTake() { return primary.lazyTake(); }
+
+        public Lazy.DB lazyTakeReadOnly() {
+            return new Lazy.DB() {
+                public Db compute() throws SQLException { return takeReadOnly(); }
+            };
+        }
+
+        /** Return the database connection to the pool it came from. */
+        public void putBack(Db db) { db.pool.putBack(db); }
+
+        /** Return the database connection if and only if one was taken. */
+        public void putBack(Lazy.DB db) {
+            if (db.computed()) putBack(db.getIfSet());
+        }
     }
+
     static Charset UTF8 = Charset.forName("UTF-8");
     
     /*
@@ -0,0 +1,220 @@
+package salt4j;
+
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import salt4j.cache.TmCache;
+import salt4j.cache.evict.EvictorMap;
+
+/**
+ * Caches materialized query results in a TmCache.  Each entry is registered under the tables its
+ * query mentions, and Db.exec evicts every entry registered under a table it mentions.
+ * Lookups and evictions are transactional: finish each request with TmCache.commit() (after
+ * db.commit()) or TmCache.rollback().
+ */
+public class QueryCache {
+    final TmCache<Key, Rows> cache;
+    final EvictorMap<String, Key> evictors;
+
+    public QueryCache(TmCache<Key, Rows> cache) {
+        this.cache = cache; this.evictors = new EvictorMap<String, Key>(cache);
+    }
+
+    public QueryCache(int concurrency) { this(new TmCache<Key, Rows>(concurrency)); }
+
+    /** A load in progress of the rows of a key. */
+    private static final class Load {
+        final CountDownLatch done = new CountDownLatch(1);
+        Rows rows = null; //null if the load failed.
+    }
+
+    private final ConcurrentHashMap<Key, Load> loads = new ConcurrentHashMap<Key, Load>();
+
+    private volatile long maxLoadWaitMillis = 1000;
+
+    /**
+     * How long a miss waits for another transaction's load of the same key before running the
+     * query itself, e.g. because that load waits for row locks the miss's transaction holds.
+     */
+    public void setMaxLoadWait(long millis) { maxLoadWaitMillis = millis; }
+
+    /**
+     * Concurrent misses for a key wait for one load, unless their transaction wrote: rows loaded by
+     * another transaction wouldn't show its own writes.  The rows are cached only if the key's write
+     * lock is free: the other readers' read locks, taken by their misses, are held until they
+     * commit, and upgrading past them could only wait or deadlock.  A later miss caches them then.
+     */
+    Rows query(Db db, String sql, Object[] params) throws SQLException {
+        final Key key = new Key(sql, params);
+        Rows rows = cache.get(key);
+        while (rows == null) {
+            final Load load = new Load(), leader = db.wrote ? null : loads.putIfAbsent(key, load);
+            if (leader != null) {
+                try {
+                    if (leader.done.await(maxLoadWaitMillis, TimeUnit.MILLISECONDS)) {
+                        rows = leader.rows; continue; //or, if it failed, try again.
+                    }
+                } catch (InterruptedException e) { throw new SQLException("interrupted", e); }
+            }
+            try { //as the leader, or alone.
+                final ResultSet rs = db.query(sql, params);
+                try { rows = load.rows = new Rows(rs); } finally { rs.close(); }
+            } finally {
+                loads.remove(key, load);
+                load.done.countDown();
+            }
+            if (cache.tryPut(key, rows)) {
+                for (String table: tables(sql)) evictors.register(table, key);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Evict every entry registered under a table mentioned by sql.  No monitor is held while
+     * waiting for the entries' locks, so readers holding some of them can still register misses.
+     */
+    public void invalidate(String sql) { evictors.evictAll(tables(sql)); }
+
+    public void invalidateTable(String table) { evictors.evict(table.toLowerCase()); }
+
+    /** The cache key: sql and a copy of its parameters, since callers may reuse their array. */
+    public static final class Key {
+        final String sql; final Object[] params; final int hash;
+        Key(String sql, Object[] params) {
+            this.sql = sql; this.params = params.clone();
+            this.hash = sql.hashCode() * 31 + Arrays.deepHashCode(this.params);
+        }
+        public int hashCode() { return hash; }
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key)o;
+            return hash == k.hash && sql.equals(k.sql) && Arrays.deepEquals(params, k.params);
+        }
+    }
+
+    /** An immutable copy of a result: column labels and one flat array of values, row by row. */
+    public static final class Rows {
+        private final String[] labels;
+        private final Object[] values;
+        private final int nRows;
+
+        Rows(ResultSet rs) throws SQLException {
+            final ResultSetMetaData meta = rs.getMetaData();
+            final int nColumns = meta.getColumnCount();
+            labels = new String[nColumns];
+            for (int i = 0; i < nColumns; i++) labels[i] = meta.getColumnLabel(i + 1);
+            final ArrayList<Object> v = new ArrayList<Object>();
+            int n = 0;
+            while (rs.next()) { n++; for (int i = 1; i <= nColumns; i++) v.add(rs.getObject(i)); }
+            values = v.toArray(); nRows = n;
+        }
+
+        public int size() { return nRows; }
+        public int columns() { return labels.length; }
+
+        /** Rows and columns count from 0. */
+        public Object get(int row, int column) { return values[row * labels.length + column]; }
+
+        public Object get(int row, String label) { return get(row, column(label)); }
+
+        public int column(String label) {
+            for (int i = 0; i < labels.length; i++) if (labels[i].equalsIgnoreCase(label)) return i;
+            throw new IllegalArgumentException("no column " + label);
+        }
+
+        public String getString(int row, String label) {
+            final Object o = get(row, label); return o == null ? null : o.toString();
+        }
+
+        public int getInt(int row, String label) { return ((Number)get(row, label)).intValue(); }
+
+        public long getLong(int row, String label) { return ((Number)get(row, label)).longValue(); }
+
+        /** Like Db.getUTF8 */
+        public String getUTF8(int row, String label) {
+            return new String((byte[])get(row, label), UTF8);
+        }
+    }
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentHashMap<String, List<String>> TABLES =
+            new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * The lowercase names of the tables that follow FROM, JOIN, UPDATE or INTO in sql, including
+     * comma-separated lists.  Errs on the side of naming too many tables.
+     */
+    static List<String> tables(String sql) {
+        List<String> tables = TABLES.get(sql);
+        if (tables == null) {
+            tables = parseTables(sql);
+            if (TABLES.size() > 4096) TABLES.clear(); //dynamically built SQL: don't grow forever.
+            TABLES.put(sql, tables);
+        }
+        return tables;
+    }
+
+    private static List<String> parseTables(String sql) {
+        final List<String> tokens = tokenize(sql);
+        final ArrayList<String> tables = new ArrayList<String>(2);
+        for (int i = 0; i < tokens.size(); i++) {
+            final String t = tokens.get(i).toUpperCase();
+            if (!(t.equals("FROM") || t.equals("JOIN") || t.equals("UPDATE") || t.equals("INTO"))) continue;
+            int j = i + 1;
+            while (j < tokens.size() && isIdentifier(tokens.get(j))) {
+                final String name = tokens.get(j++);
+                final String table = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+                if (!tables.contains(table)) tables.add(table);
+                if (j < tokens.size() && tokens.get(j).equalsIgnoreCase("AS")) j++;
+                if (j < tokens.size() && isIdentifier(tokens.get(j)) && !isKeyword(tokens.get(j))) j++;
+                if (j < tokens.size() && tokens.get(j).equals(",")) j++; else break;
+            }
+        }
+        return tables;
+    }
+
+    private static final List<String> KEYWORDS = Arrays.asList("WHERE", "SET", "VALUES", "SELECT",
+            "JOIN", "INNER", "LEFT", "RIGHT", "OUTER", "CROSS", "NATURAL", "STRAIGHT_JOIN", "ON",
+            "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "UNION", "FOR", "LOCK", "PARTITION", "USE",
+            "FORCE", "IGNORE", "DUPLICATE");
+
+    private static boolean isKeyword(String token) { return KEYWORDS.contains(token.toUpperCase()); }
+
+    private static boolean isIdentifier(String token) {
+        final char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_';
+    }
+
+    /** Identifiers (backquotes removed), and single punctuation characters.  Skips literals. */
+    private static List<String> tokenize(String sql) {
+        final ArrayList<String> tokens = new ArrayList<String>();
+        final int l = sql.length();
+        for (int i = 0; i < l; ) {
+            final char c = sql.charAt(i);
+            if (c == '\'' || c == '"') { //string literal
+                i++; while (i < l && sql.charAt(i) != c) i += sql.charAt(i) == '\\' ? 2 : 1; i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '`') {
+                final StringBuilder b = new StringBuilder();
+                while (i < l) {
+                    final char d = sql.charAt(i);
+                    if (Character.isLetterOrDigit(d) || d == '_' || d == '$' || d == '.') b.append(d);
+                    else if (d != '`') break;
+                    i++;
+                }
+                if (b.length() > 0) tokens.add(b.toString());
+            } else {
+                if (!Character.isWhitespace(c)) tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,99 @@
+package salt4j;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import salt4j.core.Lazy;
+
+/**
+ * Runs independent queries concurrently, each on its own pooled connection and in its own
+ * transaction, so a page waits for the slowest query rather than for the sum of them.
+ * <pre>
+ * QueryGroup group = pool.group();
+ * try {
+ *     Lazy.Result user = group.query("select ...", id), posts = group.query("select ...", id);
+ *     ResultSet rs = user.get(); //blocks only until this query is done.
+ * } finally { group.close(); } //waits for every query, then returns the connections.
+ * </pre>
+ */
+public class QueryGroup {
+    private final Db.Pool pool;
+    private final ExecutorService executor;
+    private final long takeTimeoutMillis;
+
+    private final ArrayList<Lazy.DB> taken = new ArrayList<Lazy.DB>();
+    private final ArrayList<Future<ResultSet>> running = new ArrayList<Future<ResultSet>>();
+    private boolean closed = false;
+
+    /**
+     * @param takeTimeoutMillis how long each query waits for a connection.  Bounded, because the
+     * caller may already hold connections from the same pool.
+     */
+    public QueryGroup(Db.Pool pool, ExecutorService executor, long takeTimeoutMillis) {
+        this.pool = pool; this.executor = executor; this.takeTimeoutMillis = takeTimeoutMillis;
+    }
+
+    /** Start running the query now.  The result's get() waits for it to finish. */
+    public Lazy.Result query(final String sql, final Object... params) {
+        final Lazy.DB db = lazyTake();
+        return submit(new Callable<ResultSet>() {
+            public ResultSet call() throws SQLException { return db.get().query(sql, params); }
+        }, db);
+    }
+
+    public Lazy.Result query(final String sql, final List<?> params) {
+        final Lazy.DB db = lazyTake();
+        return submit(new Callable<ResultSet>() {
+            public ResultSet call() throws SQLException { return db.get().query(sql, params); }
+        }, db);
+    }
+
+    private Lazy.DB lazyTake() {
+        return new Lazy.DB() {
+            public Db compute() throws SQLException { return pool.take(takeTimeoutMillis); }
+        };
+    }
+
+    private synchronized Lazy.Result submit(Callable<ResultSet> task, Lazy.DB db) {
+        if (closed) throw new IllegalStateException("QueryGroup is closed");
+        final Future<ResultSet> result = executor.submit(task);
+        taken.add(db); running.add(result);
+        return new Lazy.Result() {
+            public ResultSet compute() throws SQLException { return await(result); }
+        };
+    }
+
+    private static ResultSet await(Future<ResultSet> result) throws SQLException {
+        try { return result.get(); }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a query", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+            else throw new SQLException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Wait for every query, then return their connections to the pool.  Read the results first:
+     * returning a connection rolls its transaction back, which closes its ResultSet.
+     */
+    public synchronized void close() {
+        if (closed) return; else closed = true;
+        boolean interrupted = false;
+        for (Future<ResultSet> result: running) {
+            for (;;) {
+                try { result.get(); break; }
+                catch (InterruptedException e) { interrupted = true; } //the connection must come back.
+                catch (ExecutionException e) { break; }
+            }
+        }
+        for (Lazy.DB db: taken) pool.putBack(db);
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,103 @@
+package salt4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * An LRU cache of the PreparedStatements of one connection.  Evicted statements are closed when
+ * the transaction ends (see Db.commit() and rollback()), since a ResultSet, a Lazy.Result or a
+ * Db.Batch may still be using them until then; their cursors close at commit anyway.
+ * Like its Db, it must only be used by one thread at a time; the counters may be read by any thread.
+ */
+public class StatementCache {
+    final int capacity;
+    final boolean normalize; //key on SQL with insignificant whitespace collapsed.
+    final int resultSetType;
+
+    volatile long hits = 0, misses = 0, evictions = 0;
+
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private final ArrayList<PreparedStatement> retired = new ArrayList<PreparedStatement>(); //evicted, still open.
+
+    public StatementCache(final int capacity, boolean normalize, int resultSetType) {
+        this.capacity = capacity; this.normalize = normalize; this.resultSetType = resultSetType;
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) return false;
+                retired.add(eldest.getValue());
+                evictions++; return true;
+            }
+        };
+    }
+
+    /** Return the cached statement for sql, preparing it on connection if necessary. */
+    PreparedStatement get(Connection connection, String sql) throws SQLException {
+        final String key = normalize ? normalize(sql) : sql;
+        PreparedStatement p = statements.get(key);
+        if (p != null) { hits++; return p; }
+        misses++;
+        p = connection.prepareStatement(key,
+                resultSetType,
+                ResultSet.CONCUR_READ_ONLY,
+                ResultSet.CLOSE_CURSORS_AT_COMMIT);
+        statements.put(key, p);
+        return p;
+    }
+
+    /** Close the statements evicted since the transaction began, once it has ended. */
+    void closeRetired() {
+        for (PreparedStatement s: retired) {
+            try { s.close(); } catch (SQLException e) {} //the statement is gone either way.
+        }
+        retired.clear();
+    }
+
+    /** Close every cached statement. */
+    void close() throws SQLException {
+        closeRetired();
+        try { for (PreparedStatement s: statements.values()) s.close(); }
+        finally { statements.clear(); }
+    }
+
+    public int size() { return statements.size(); }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+
+    /**
+     * Collapse each run of whitespace outside of quotes and comments into one space and trim the
+     * ends.  Quotes may contain backslash escapes (as in MySQL) and doubled quotes; comments are
+     * copied as they are, with the newline that ends a -- or # comment.  Anything that merely
+     * looks like a comment is copied too, which is harmless.
+     */
+    static String normalize(String sql) {
+        final int l = sql.length();
+        final StringBuilder b = new StringBuilder(l);
+        boolean space = false;
+        for (int i = 0; i < l; i++) {
+            final char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) { space = b.length() > 0; continue; }
+            if (space) { b.append(' '); space = false; }
+            int end = i; //the last character to copy as is.
+            if (c == '\'' || c == '"' || c == '`') { //a doubled quote ends one quote and starts another.
+                end = i + 1;
+                while (end < l && sql.charAt(end) != c) end += c != '`' && sql.charAt(end) == '\\' ? 2 : 1;
+            } else if (c == '#' || (c == '-' && i + 1 < l && sql.charAt(i + 1) == '-')) {
+                end = sql.indexOf('\n', i);
+                if (end == -1) end = l;
+            } else if (c == '/' && i + 1 < l && sql.charAt(i + 1) == '*') {
+                end = sql.indexOf("*/", i + 2);
+                end = end == -1 ? l : end + 1;
+            }
+            end = Math.min(end, l - 1);
+            b.append(sql, i, end + 1);
+            i = end;
+        }
+        return b.length() == l ? sql : b.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package salt4j.cache;
+
+import java.util.HashMap;
+
+/**
+ * A stripe bounded by the total weight of its values, evicted by segmented LRU.  New entries
+ * start on probation and are promoted to the protected segment (80% of the weight) when read
+ * again, so a scan of cold keys can't flush the entries that are actually reused.  Entries may
+ * also expire a fixed time after they were written or last read.
+ */
+final class BoundedStripe<K, V> extends Stripe<K, V> {
+    private static final class Node<K, V> {
+        final K key; final V value; final int weight; final long written;
+        long accessed; boolean isProtected;
+        Node<K,V> prev = null, next = null; //null when not in a segment.
+
+        Node(K key, V value, int weight, long now) {
+            this.key = key; this.value = value; this.weight = weight; written = accessed = now;
+        }
+    }
+
+    private final HashMap<K, Node<K,V>> map = new HashMap<K, Node<K,V>>();
+    //circular lists, least recently used first:
+    private final Node<K,V> probation = sentinel(), protectedSegment = sentinel();
+    private long probationWeight = 0, protectedWeight = 0;
+    private final long maxWeight, maxProtectedWeight;
+    private final Weigher<? super V> weigher;
+    private long expireAfterWriteNanos = 0, expireAfterAccessNanos = 0; //0: never
+    private long evictions = 0;
+
+    BoundedStripe(long maxWeight, Weigher<? super V> weigher) {
+        this.maxWeight = maxWeight; this.maxProtectedWeight = maxWeight * 4 / 5; this.weigher = weigher;
+    }
+
+    private static <K, V> Node<K,V> sentinel() {
+        final Node<K,V> n = new Node<K,V>(null, null, 0, 0);
+        n.prev = n.next = n; return n;
+    }
+
+    synchronized void expireAfter(long writeNanos, long accessNanos) {
+        expireAfterWriteNanos = writeNanos; expireAfterAccessNanos = accessNanos;
+    }
+
+    private boolean expiring() { return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0; }
+
+    private boolean expired(Node<K,V> n, long now) {
+        return (expireAfterWriteNanos > 0 && now - n.written >= expireAfterWriteNanos)
+            || (expireAfterAccessNanos > 0 && now - n.accessed >= expireAfterAccessNanos);
+    }
+
+    private void link(Node<K,V> n, boolean toProtected) { //as most recently used
+        final Node<K,V> head = toProtected ? protectedSegment : probation;
+        n.isProtected = toProtected;
+        n.prev = head.prev; n.next = head; head.prev.next = n; head.prev = n;
+        if (toProtected) protectedWeight += n.weight; else probationWeight += n.weight;
+    }
+
+    private void unlink(Node<K,V> n) {
+        n.prev.next = n.next; n.next.prev = n.prev; n.prev = n.next = null;
+        if (n.isProtected) protectedWeight -= n.weight; else probationWeight -= n.weight;
+    }
+
+    synchronized V get(K key) {
+        final Node<K,V> n = map.get(key);
+        if (n == null) return null;
+        if (expiring()) {
+            final long now = System.nanoTime();
+            if (expired(n, now)) { unlink(n); map.remove(key); return null; }
+            n.accessed = now;
+        }
+        unlink(n); link(n, true);
+        while (protectedWeight > maxProtectedWeight && protectedSegment.next != n) {
+            final Node<K,V> lru = protectedSegment.next;
+            unlink(lru); link(lru, false); //demoted, not evicted.
+        }
+        return n.value;
+    }
+
+    synchronized Object put(K key, V value) {
+        final Node<K,V> former = map.remove(key);
+        if (former != null) unlink(former);
+        final int weight = weigher.weigh(value);
+        if (weight <= maxWeight) { //else too big to cache at all.
+            final Node<K,V> n = new Node<K,V>(key, value, weight, expiring() ? System.nanoTime() : 0);
+            map.put(key, n); link(n, false);
+            evictToFit(n);
+        }
+        return former;
+    }
+
+    synchronized Object remove(K key) {
+        final Node<K,V> former = map.remove(key);
+        if (former != null) unlink(former);
+        return former;
+    }
+
+    @SuppressWarnings("unchecked") //entry came from put() or remove().
+    synchronized void restore(K key, Object entry) {
+        final Node<K,V> current = map.remove(key);
+        if (current != null) unlink(current);
+        final Node<K,V> n = (Node<K,V>)entry;
+        if (n != null && n.prev == null) { map.put(key, n); link(n, false); evictToFit(n); }
+    }
+
+    /** Evict least recently used entries, on probation first, but never the entry just added. */
+    private void evictToFit(Node<K,V> added) {
+        while (probationWeight + protectedWeight > maxWeight) {
+            Node<K,V> victim = probation.next;
+            if (victim == added || victim == probation) victim = protectedSegment.next;
+            if (victim == protectedSegment) return; //only added is left.
+            unlink(victim); map.remove(victim.key); evictions++;
+        }
+    }
+
+    synchronized int size() { return map.size(); }
+
+    synchronized long weight() { return probationWeight + protectedWeight; }
+
+    synchronized long evictions() { return evictions; }
+
+    /** Drop expired entries. */
+    synchronized void gc() {
+        if (!expiring()) return;
+        final long now = System.nanoTime();
+        gc(probation, now); gc(protectedSegment, now);
+    }
+
+    private void gc(Node<K,V> head, long now) {
+        for (Node<K,V> n = head.next; n != head; ) {
+            final Node<K,V> next = n.next;
+            if (expired(n, now)) { unlink(n); map.remove(n.key); }
+            n = next;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package salt4j.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/** A Cache that can get, put and evict many keys at once, and count its evictions. */
+public interface BulkCache<K, V> extends Cache<K, V> {
+    /** The cached values of keys; missing keys are left out. */
+    public Map<K, V> getAll(Collection<? extends K> keys);
+    public void putAll(Map<? extends K, ? extends V> entries);
+    public void evictAll(Collection<? extends K> keys);
+
+    /**
+     * A count of the calls to evict() and evictAll().  If it changed while a value was being
+     * computed, the value may already be stale.
+     */
+    public long epoch();
+}
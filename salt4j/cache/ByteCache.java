@@ -0,0 +1,20 @@
+package salt4j.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** A Cache of byte[] fragments that can also write a value out without first copying it to a byte[]. */
+public interface ByteCache<K> extends BulkCache<K, byte[]> {
+    /** Write the value of key to out and return true, or return false if it isn't cached. */
+    public boolean writeTo(K key, WritableByteChannel out) throws IOException;
+
+    /**
+     * A channel that can keep a value by reference instead of copying it, e.g. HtmlWriter.channel().
+     * writeTo() may call keep() instead of write().
+     */
+    public interface KeepingChannel extends WritableByteChannel {
+        /** Take b, which won't change until release.run(); call it once b is no longer read. */
+        public void keep(ByteBuffer b, Runnable release) throws IOException;
+    }
+}
@@ -1,5 +1,6 @@
 package salt4j.cache;
 
+/** See BulkCache for the batch operations, and Caches to use them on any Cache. */
 public interface Cache<K, V> {
     public void put(K key, V value);
     public V get(K key);
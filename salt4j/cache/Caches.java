@@ -0,0 +1,36 @@
+package salt4j.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The BulkCache operations on any Cache: a BulkCache does them itself, other caches one key at a
+ * time.  A Cache that isn't a BulkCache has no epoch, so values computed for it are never
+ * discarded as stale.
+ */
+public final class Caches {
+    private Caches() {}
+
+    public static <K, V> Map<K, V> getAll(Cache<K, V> cache, Collection<? extends K> keys) {
+        if (cache instanceof BulkCache) return ((BulkCache<K, V>)cache).getAll(keys);
+        final HashMap<K, V> result = new HashMap<K, V>(keys.size() * 2);
+        for (K key: keys) { final V value = cache.get(key); if (value != null) result.put(key, value); }
+        return result;
+    }
+
+    public static <K, V> void putAll(Cache<K, V> cache, Map<? extends K, ? extends V> entries) {
+        if (cache instanceof BulkCache) { ((BulkCache<K, V>)cache).putAll(entries); return; }
+        for (Map.Entry<? extends K, ? extends V> e: entries.entrySet()) cache.put(e.getKey(), e.getValue());
+    }
+
+    public static <K> void evictAll(Cache<K, ?> cache, Collection<? extends K> keys) {
+        if (cache instanceof BulkCache) { ((BulkCache<K, ?>)cache).evictAll(keys); return; }
+        for (K key: keys) cache.evict(key);
+    }
+
+    /** See BulkCache.epoch(); always 0 for other caches. */
+    public static long epoch(Cache<?, ?> cache) {
+        return cache instanceof BulkCache ? ((BulkCache<?, ?>)cache).epoch() : 0;
+    }
+}
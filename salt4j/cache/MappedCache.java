@@ -0,0 +1,261 @@
+package salt4j.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A disk-backed cache of byte[] values in memory-mapped segment files, meant as a second level
+ * behind an in-memory cache (see TieredCache) that survives restarts and can outgrow RAM.
+ *
+ * Values are appended to the newest segment; when there are more than maxSegments, the oldest
+ * segment is deleted with its entries.  snapshot() (e.g. from snapshotOnShutdown()) saves the
+ * index.  If asked to reload, on startup the index is reloaded, keeping only entries stamped
+ * with the current version, and each segment is mapped the first time it is read.  Without a
+ * snapshot, or after a crash, the cache starts empty.  Not transactional.
+ *
+ * Lookups share a read lock, and values are copied out after releasing it: segments are only
+ * appended to, and a deleted segment stays mapped while a copy still reads it.
+ *
+ * Evictors' registrations aren't saved, so reloaded entries are never evicted by them: reload
+ * only entries that can't go stale, e.g. with keys that name a revision of their content.
+ */
+public class MappedCache<K extends Serializable> implements ByteCache<K> {
+    private static final String INDEX = "index.dat";
+
+    private static final class Location implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int segment, offset, length; final long version;
+        Location(int segment, int offset, int length, long version) {
+            this.segment = segment; this.offset = offset; this.length = length; this.version = version;
+        }
+    }
+
+    private final class Segment {
+        final int id; final File file;
+        int end; //where the next value goes.
+        private MappedByteBuffer buffer = null;
+
+        Segment(int id, int end) { this.id = id; this.end = end; file = new File(directory, "segment-" + id + ".dat"); }
+
+        synchronized ByteBuffer buffer() throws IOException { //mapped on first use.
+            if (buffer == null) {
+                final RandomAccessFile f = new RandomAccessFile(file, "rw");
+                try { buffer = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); }
+                finally { f.close(); } //the mapping stays valid.
+            }
+            return buffer.duplicate();
+        }
+
+        synchronized void force() { if (buffer != null) buffer.force(); }
+    }
+
+    private final File directory;
+    private final int segmentSize, maxSegments;
+    private final long version;
+    private final HashMap<K, Location> index = new HashMap<K, Location>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>(); //oldest first.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); //guards the above.
+
+    /**
+     * @param segmentSize the size of a segment file; also the largest value that can be cached.
+     * @param version entries stamped with another version (e.g. written by an older release) are
+     *                discarded on startup.
+     * @param reload keep the entries of the last snapshot; else start empty.  See above.
+     */
+    public MappedCache(File directory, int segmentSize, int maxSegments, long version, boolean reload)
+    throws IOException {
+        this.directory = directory; this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments; this.version = version;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("can't create " + directory);
+        load(reload);
+    }
+
+    /** A cache that starts empty, since its entries may have gone stale while it was down. */
+    public MappedCache(File directory, int segmentSize, int maxSegments) throws IOException {
+        this(directory, segmentSize, maxSegments, 0, false);
+    }
+
+    private void load(boolean reload) throws IOException {
+        final File indexFile = new File(directory, INDEX);
+        if (indexFile.exists() && reload) {
+            try {
+                final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                try {
+                    final int nSegments = in.readInt();
+                    for (int i = 0; i < nSegments; i++) {
+                        final Segment s = new Segment(in.readInt(), in.readInt());
+                        if (s.file.exists()) segments.put(s.id, s);
+                    }
+                    @SuppressWarnings("unchecked") final Map<K, Location> saved = (Map<K, Location>)in.readObject();
+                    for (Map.Entry<K, Location> e: saved.entrySet()) {
+                        final Location l = e.getValue();
+                        if (l.version == version && segments.containsKey(l.segment)) index.put(e.getKey(), l);
+                    }
+                    final HashSet<Integer> used = new HashSet<Integer>();
+                    for (Location l: index.values()) used.add(l.segment);
+                    segments.keySet().retainAll(used); //the rest are deleted below.
+                } finally { in.close(); }
+            } catch (ClassNotFoundException e) { index.clear(); segments.clear(); }
+            catch (IOException e) { index.clear(); segments.clear(); } //unreadable: start cold.
+        }
+        indexFile.delete(); //after a crash, the segments may no longer match it.
+        final File[] files = directory.listFiles();
+        if (files != null) for (File f: files) { //segments that weren't in the index are garbage.
+            final String name = f.getName();
+            if (name.startsWith("segment-") && name.endsWith(".dat")) {
+                final String id = name.substring(8, name.length() - 4);
+                try { if (!segments.containsKey(Integer.parseInt(id))) f.delete(); }
+                catch (NumberFormatException e) {}
+            }
+        }
+        if (segments.isEmpty()) segments.put(0, new Segment(0, 0));
+    }
+
+    /** Save the index, so the next MappedCache on this directory starts with these entries. */
+    public void snapshot() throws IOException {
+        lock.readLock().lock();
+        try { save(); } finally { lock.readLock().unlock(); }
+    }
+
+    private void save() throws IOException {
+        for (Segment s: segments.values()) s.force();
+        final File tmp = new File(directory, INDEX + ".tmp");
+        final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(segments.size());
+            for (Segment s: segments.values()) { out.writeInt(s.id); out.writeInt(s.end); }
+            out.writeObject(index);
+        } finally { out.close(); }
+        final File indexFile = new File(directory, INDEX);
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) throw new IOException("can't rename " + tmp);
+    }
+
+    /** Call snapshot() when the JVM shuts down normally. */
+    public void snapshotOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread("salt4j-mapped-cache-snapshot") {
+            public void run() {
+                try { snapshot(); } catch (IOException e) { e.printStackTrace(); }
+            }
+        });
+    }
+
+    public void put(K key, byte[] value) {
+        lock.writeLock().lock();
+        try { putLocked(key, value); } finally { lock.writeLock().unlock(); }
+    }
+
+    private void putLocked(K key, byte[] value) {
+        index.remove(key);
+        if (value.length > segmentSize) return; //too big to cache.
+        Segment s = segments.lastEntry().getValue();
+        if (s.end + value.length > segmentSize) s = roll();
+        try {
+            final ByteBuffer b = s.buffer();
+            b.position(s.end); b.put(value);
+        } catch (IOException e) { throw new RuntimeException(e.getMessage(), e); }
+        index.put(key, new Location(s.id, s.end, value.length, version));
+        s.end += value.length;
+    }
+
+    /** Start a new segment, deleting the oldest if there are too many. */
+    private Segment roll() {
+        final Segment s = new Segment(segments.lastKey() + 1, 0);
+        segments.put(s.id, s);
+        if (segments.size() > maxSegments) {
+            final Segment oldest = segments.pollFirstEntry().getValue();
+            for (Iterator<Location> i = index.values().iterator(); i.hasNext(); )
+                if (i.next().segment == oldest.id) i.remove();
+            oldest.buffer = null; //unmapped once collected.
+            oldest.file.delete();
+        }
+        return s;
+    }
+
+    /** A view of the value, taken under the read lock and read after it. */
+    private ByteBuffer read(K key) throws IOException {
+        lock.readLock().lock();
+        try {
+            final Location l = index.get(key);
+            if (l == null) return null;
+            final ByteBuffer b = segments.get(l.segment).buffer();
+            b.limit(l.offset + l.length).position(l.offset);
+            return b;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    /** A copy of the value on the heap.  writeTo() avoids the copy. */
+    public byte[] get(K key) {
+        try {
+            final ByteBuffer b = read(key);
+            if (b == null) return null;
+            final byte[] value = new byte[b.remaining()];
+            b.get(value);
+            return value;
+        } catch (IOException e) { throw new RuntimeException(e.getMessage(), e); }
+    }
+
+    /** Writes to out without holding the lock, so a slow out delays nobody else. */
+    public boolean writeTo(K key, WritableByteChannel out) throws IOException {
+        final ByteBuffer b = read(key);
+        if (b == null) return false;
+        while (b.hasRemaining()) out.write(b);
+        return true;
+    }
+
+    /** The space is reclaimed when its segment is deleted. */
+    public void evict(K key) {
+        lock.writeLock().lock();
+        try { epoch.incrementAndGet(); index.remove(key); } finally { lock.writeLock().unlock(); }
+    }
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    public long epoch() { return epoch.get(); }
+
+    public Map<K, byte[]> getAll(Collection<? extends K> keys) {
+        final HashMap<K, byte[]> result = new HashMap<K, byte[]>(keys.size() * 2);
+        for (K key: keys) { final byte[] value = get(key); if (value != null) result.put(key, value); }
+        return result;
+    }
+
+    public void putAll(Map<? extends K, ? extends byte[]> entries) {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<? extends K, ? extends byte[]> e: entries.entrySet()) putLocked(e.getKey(), e.getValue());
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    public void evictAll(Collection<? extends K> keys) {
+        lock.writeLock().lock();
+        try {
+            epoch.incrementAndGet();
+            for (K key: keys) index.remove(key);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try { return index.size(); } finally { lock.readLock().unlock(); }
+    }
+}
@@ -0,0 +1,295 @@
+package salt4j.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of byte[] values stored outside the Java heap, so the GC never scans them.
+ *
+ * Memory comes in slabs of direct ByteBuffers.  A slab is cut into slots of one size class, a
+ * power of two from 64 bytes up to the slab size, and a value takes a slot of the smallest class
+ * that fits it.  A slot is freed as soon as its entry is replaced or evicted, and a slab without
+ * entries can be cut again for any class.  When a class has no free slot and no more slabs may be
+ * allocated, its least recently used entry is evicted; a class without entries takes a slab from
+ * the class with the most slabs.
+ * Values larger than a slab aren't cached.  Not transactional: use it where a HashCache would do.
+ *
+ * writeTo() pins the value's slot and writes after releasing the segment, so a slow channel
+ * doesn't hold up the segment; a pinned slot that is evicted is only freed once it is unpinned.
+ * A KeepingChannel keeps the slot pinned until it releases it, or else until the GC finds the
+ * release unreachable.
+ */
+public class OffHeapCache<K> implements ByteCache<K> {
+    private static final int MIN_SLOT = 64;
+
+    private final Segment<K>[] segments;
+    private final int slabSize;
+
+    /**
+     * @param maxBytes the off-heap memory the cache may use, shared evenly by the segments.
+     * @param slabSize the unit of allocation; also the largest value that can be cached.
+     */
+    public OffHeapCache(int concurrency, long maxBytes, int slabSize) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < MIN_SLOT) throw new IllegalArgumentException(
+                "slabSize must be a power of two of at least " + MIN_SLOT);
+        this.slabSize = slabSize;
+        final int slabsPerSegment = (int)Math.max(1, maxBytes / slabSize / concurrency);
+        @SuppressWarnings("unchecked") final Segment<K>[] s = (Segment<K>[])new Segment<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) s[i] = new Segment<K>(slabSize, slabsPerSegment);
+        segments = s;
+    }
+
+    public OffHeapCache(int concurrency, long maxBytes) { this(concurrency, maxBytes, 1 << 20); }
+
+    private Segment<K> segment(K key) { return segments[(key.hashCode() & 0x7FFFFFFF) % segments.length]; }
+
+    public void put(K key, byte[] value) { segment(key).put(key, value); }
+
+    /** A copy of the value on the heap.  writeTo() avoids the copy. */
+    public byte[] get(K key) { return segment(key).get(key); }
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    public void evict(K key) { epoch.incrementAndGet(); segment(key).evict(key); }
+
+    public Map<K, byte[]> getAll(Collection<? extends K> keys) {
+        final HashMap<K, byte[]> result = new HashMap<K, byte[]>(keys.size() * 2);
+        for (K key: keys) { final byte[] value = get(key); if (value != null) result.put(key, value); }
+        return result;
+    }
+
+    public void putAll(Map<? extends K, ? extends byte[]> entries) {
+        for (Map.Entry<? extends K, ? extends byte[]> e: entries.entrySet()) put(e.getKey(), e.getValue());
+    }
+
+    public void evictAll(Collection<? extends K> keys) { for (K key: keys) evict(key); }
+
+    public long epoch() { return epoch.get(); }
+
+    public boolean writeTo(K key, WritableByteChannel out) throws IOException {
+        return segment(key).writeTo(key, out);
+    }
+
+    public int size() { int n = 0; for (Segment<K> s: segments) n += s.size(); return n; }
+
+    /** Off-heap memory allocated so far. */
+    public long allocatedBytes() { long n = 0; for (Segment<K> s: segments) n += s.slabs(); return n * slabSize; }
+
+    public long hits() { long n = 0; for (Segment<K> s: segments) n += s.hits; return n; }
+    public long misses() { long n = 0; for (Segment<K> s: segments) n += s.misses; return n; }
+    public long evictions() { long n = 0; for (Segment<K> s: segments) n += s.evictions; return n; }
+
+    /** Values that weren't cached because they were bigger than a slab or there was no room. */
+    public long rejections() { long n = 0; for (Segment<K> s: segments) n += s.rejections; return n; }
+
+    /** A slab, cut into slots of one size class as they are needed, or empty and of no class. */
+    private static final class Slab {
+        final ByteBuffer buffer;
+        int sizeClass = -1, slotSize = 0, cut = 0, used = 0;
+        final ArrayList<Slot> slots = new ArrayList<Slot>(); //cut so far.
+        final ArrayDeque<Slot> free = new ArrayDeque<Slot>();
+        boolean partial = false; //listed as having room.
+
+        Slab(ByteBuffer buffer) { this.buffer = buffer; }
+
+        boolean hasRoom() { return !free.isEmpty() || cut + slotSize <= buffer.capacity(); }
+
+        void assign(int sizeClass) {
+            this.sizeClass = sizeClass; slotSize = sizeClass < 0 ? 0 : MIN_SLOT << sizeClass; cut = 0; used = 0;
+            slots.clear(); free.clear();
+        }
+
+        Slot take() {
+            Slot slot = free.poll();
+            if (slot == null) { slot = new Slot(this, cut); slots.add(slot); cut += slotSize; }
+            used++;
+            return slot;
+        }
+    }
+
+    private static final class Slot {
+        final Slab slab; final int offset;
+        Object key = null; int length = 0;
+        int pins = 0; boolean evicted = false; //evicted while pinned: free it on the last unpin.
+        Slot(Slab slab, int offset) { this.slab = slab; this.offset = offset; }
+
+        /** A view of the value; the caller must hold the segment. */
+        ByteBuffer value() {
+            final ByteBuffer b = slab.buffer.duplicate();
+            b.limit(offset + length).position(offset);
+            return b;
+        }
+    }
+
+    /** A slot pinned for a KeepingChannel; run() or the Reaper unpins it, once. */
+    private static final class Pin extends Reaper.WeakRef<Runnable> {
+        final Segment<?> segment; final Slot slot;
+        Pin(Runnable release, Segment<?> segment, Slot slot) { super(release); this.segment = segment; this.slot = slot; }
+        public void reap() { segment.unpin(this); }
+    }
+
+    private static final class Release implements Runnable {
+        Pin pin;
+        public void run() { pin.reap(); }
+    }
+
+    private static final class Segment<K> {
+        private final int slabSize;
+        private int slabsLeft, slabs = 0;
+        private final HashMap<K, Slot> index = new HashMap<K, Slot>();
+        private final LinkedHashMap<K, Slot>[] lru; //per size class, least recently used first.
+        private final ArrayDeque<Slab>[] partial;   //per size class, the slabs with room.
+        private final int[] slabsOf;                //per size class.
+        private final ArrayDeque<Slab> empty = new ArrayDeque<Slab>();
+        private final HashSet<Pin> pins = new HashSet<Pin>(); //reachable until unpinned.
+        volatile long hits = 0, misses = 0, evictions = 0, rejections = 0;
+
+        Segment(int slabSize, int maxSlabs) {
+            this.slabSize = slabSize; this.slabsLeft = maxSlabs;
+            final int classes = Integer.numberOfTrailingZeros(slabSize / MIN_SLOT) + 1;
+            @SuppressWarnings("unchecked") final LinkedHashMap<K, Slot>[] l =
+                    (LinkedHashMap<K, Slot>[])new LinkedHashMap<?, ?>[classes];
+            @SuppressWarnings("unchecked") final ArrayDeque<Slab>[] p = (ArrayDeque<Slab>[])new ArrayDeque<?>[classes];
+            lru = l; partial = p;
+            slabsOf = new int[classes];
+            for (int c = 0; c < classes; c++) {
+                lru[c] = new LinkedHashMap<K, Slot>(16, 0.75f, true);
+                partial[c] = new ArrayDeque<Slab>();
+            }
+        }
+
+        private static int sizeClass(int length) {
+            return length <= MIN_SLOT ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1) - 6;
+        }
+
+        synchronized void put(K key, byte[] value) {
+            evict(key);
+            if (value.length > slabSize) { rejections++; return; }
+            final int c = sizeClass(value.length);
+            final Slot slot = allocate(c);
+            if (slot == null) { rejections++; return; }
+            final ByteBuffer b = slot.slab.buffer.duplicate();
+            b.position(slot.offset);
+            b.put(value);
+            slot.key = key; slot.length = value.length;
+            index.put(key, slot); lru[c].put(key, slot);
+        }
+
+        /**
+         * A free slot of class c: from a slab of the class with room, else from an empty or new
+         * slab, else by evicting the class's least recently used entry.  A class without entries
+         * takes over the slab of the least recently used entry of the class with the most slabs.
+         */
+        private Slot allocate(int c) {
+            for (int attempt = 0; attempt < 3; attempt++) { //evict, re-cut, take.
+                while (!partial[c].isEmpty()) {
+                    final Slab slab = partial[c].peek();
+                    if (slab.hasRoom()) {
+                        final Slot slot = slab.take();
+                        if (!slab.hasRoom()) { partial[c].poll(); slab.partial = false; }
+                        return slot;
+                    }
+                    partial[c].poll(); slab.partial = false;
+                }
+                Slab slab = empty.poll();
+                if (slab == null && slabsLeft > 0) {
+                    slabsLeft--; slabs++;
+                    slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+                }
+                if (slab == null && lru[c].isEmpty()) slab = reclaim(c);
+                if (slab != null) {
+                    slab.assign(c); slabsOf[c]++;
+                    slab.partial = true; partial[c].push(slab);
+                } else if (!lru[c].isEmpty()) { //its slot, or its slab if it was the last, frees up.
+                    evict(lru[c].keySet().iterator().next()); evictions++;
+                } else return null;
+            }
+            return null;
+        }
+
+        /** Empty the slab of the least recently used entry of the class with the most slabs. */
+        private Slab reclaim(int c) {
+            int victim = -1;
+            for (int v = 0; v < slabsOf.length; v++)
+                if (v != c && !lru[v].isEmpty() && (victim == -1 || slabsOf[v] > slabsOf[victim])) victim = v;
+            if (victim == -1) return null;
+            final Slab slab = lru[victim].values().iterator().next().slab;
+            for (Slot slot: new ArrayList<Slot>(slab.slots)) {
+                if (slot.key != null) { evict(slot.key); evictions++; }
+            }
+            return empty.poll(); //slab, once its last entry is gone.
+        }
+
+        synchronized byte[] get(K key) {
+            final Slot slot = touch(key);
+            if (slot == null) return null;
+            final byte[] value = new byte[slot.length];
+            slot.value().get(value);
+            return value;
+        }
+
+        boolean writeTo(K key, WritableByteChannel out) throws IOException {
+            final Slot slot; final ByteBuffer b; final Release release = new Release();
+            synchronized (this) {
+                slot = touch(key);
+                if (slot == null) return false;
+                slot.pins++; b = slot.value();
+                if (out instanceof KeepingChannel) { release.pin = new Pin(release, this, slot); pins.add(release.pin); }
+            }
+            if (release.pin == null) {
+                try { while (b.hasRemaining()) out.write(b); }
+                finally { unpin(slot); }
+            } else {
+                boolean kept = false;
+                try { ((KeepingChannel)out).keep(b, release); kept = true; }
+                finally { if (!kept) release.run(); }
+            }
+            return true;
+        }
+
+        synchronized void unpin(Pin pin) { if (pins.remove(pin)) { pin.clear(); unpin(pin.slot); } }
+
+        synchronized void unpin(Slot slot) {
+            if (--slot.pins == 0 && slot.evicted) { slot.evicted = false; free(slot); }
+        }
+
+        private Slot touch(K key) {
+            final Slot slot = index.get(key);
+            if (slot == null) { misses++; return null; }
+            lru[slot.slab.sizeClass].get(key); hits++;
+            return slot;
+        }
+
+        /** Free the key's slot, unless it is pinned; see free(). */
+        synchronized void evict(Object key) {
+            final Slot slot = index.remove(key);
+            if (slot == null) return;
+            lru[slot.slab.sizeClass].remove(key);
+            slot.key = null;
+            if (slot.pins > 0) slot.evicted = true; else free(slot);
+        }
+
+        /** A slab left without entries goes back to the empty slabs. */
+        private void free(Slot slot) {
+            final Slab slab = slot.slab; final int c = slab.sizeClass;
+            slab.free.push(slot);
+            if (--slab.used == 0) {
+                if (slab.partial) { partial[c].remove(slab); slab.partial = false; }
+                slabsOf[c]--; slab.assign(-1);
+                empty.push(slab);
+            } else if (!slab.partial) { slab.partial = true; partial[c].add(slab); }
+        }
+
+        synchronized int size() { return index.size(); }
+        synchronized int slabs() { return slabs; }
+    }
+}
@@ -0,0 +1,48 @@
+package salt4j.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+/**
+ * Removes the cache entries whose values the GC has collected, on one daemon thread, so writers
+ * never drain reference queues.  A removal holds only its own stripe, and joins no transaction.
+ */
+final class Reaper {
+    interface Reapable { void reap(); }
+
+    /** A soft reference that knows how to remove itself from its cache. */
+    static abstract class Ref<V> extends SoftReference<V> implements Reapable {
+        Ref(V value) { super(value, QUEUE); }
+    }
+
+    /** A weak reference to something that must be cleaned up after, e.g. OffHeapCache's pins. */
+    static abstract class WeakRef<V> extends WeakReference<V> implements Reapable {
+        WeakRef(V value) { super(value, QUEUE); }
+    }
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    static {
+        final Thread reaper = new Thread("salt4j-cache-reaper") {
+            public void run() {
+                for (;;) {
+                    try { ((Reapable)QUEUE.remove()).reap(); }
+                    catch (InterruptedException e) { return; }
+                    catch (RuntimeException e) { e.printStackTrace(); } //keep reaping.
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** Reap whatever has already been collected, on this thread. */
+    static void drain() {
+        Reference<?> ref;
+        while ((ref = QUEUE.poll()) != null) ((Reapable)ref).reap();
+    }
+
+    private Reaper() {}
+}
@@ -0,0 +1,41 @@
+package salt4j.cache;
+
+import java.util.HashMap;
+
+/**
+ * A stripe of values held by SoftReferences: the GC decides what to evict, and the Reaper
+ * removes the collected entries in the background.
+ */
+final class SoftStripe<K, V> extends Stripe<K, V> {
+    private final static class CacheRef<K,V> extends Reaper.Ref<V> {
+        public final K key; private final SoftStripe<K,V> stripe;
+        public CacheRef(K key, V value, SoftStripe<K,V> stripe) {
+            super(value); this.key = key; this.stripe = stripe;
+        }
+        public void reap() { stripe.reap(this); }
+    }
+
+    private final HashMap<K, CacheRef<K,V>> map = new HashMap<K, CacheRef<K,V>>();
+
+    synchronized V get(K key) {
+        final CacheRef<K,V> soft = map.get(key);
+        return (soft==null) ? null : soft.get();
+    }
+
+    synchronized Object put(K key, V value) { return map.put(key, new CacheRef<K, V>(key, value, this)); }
+
+    synchronized Object remove(K key) { return map.remove(key); }
+
+    @SuppressWarnings("unchecked") //formerRef came from put() or remove().
+    synchronized void restore(K key, Object formerRef) {
+        if (formerRef == null) map.remove(key); else map.put(key, (CacheRef<K,V>)formerRef);
+    }
+
+    synchronized int size() { return map.size(); }
+
+    private synchronized void reap(CacheRef<K,V> ref) {
+        if (map.get(ref.key) == ref) map.remove(ref.key); //the key may have been put again since.
+    }
+
+    void gc() { Reaper.drain(); }
+}
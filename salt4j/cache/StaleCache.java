@@ -0,0 +1,146 @@
+package salt4j.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of byte[] fragments that are served stale while they are regenerated in the background.
+ *
+ * evict() only marks an entry stale; remove() removes it.  An entry is also stale once it is
+ * older than the soft TTL.  get(key, refresher) returns stale values too, and refreshes them on a
+ * bounded pool of daemon threads, at most once at a time per key.  If the pool's queue is full,
+ * the refresh is skipped until the next get().
+ */
+public class StaleCache<K> implements BulkCache<K, byte[]> {
+    /** A cached value and its freshness.  Immutable: marking it stale replaces it, so it can be undone. */
+    public static final class Entry {
+        final byte[] bytes; final long written; final boolean stale;
+        Entry(byte[] bytes) { this(bytes, System.currentTimeMillis(), false); }
+        Entry(byte[] bytes, long written, boolean stale) { this.bytes = bytes; this.written = written; this.stale = stale; }
+
+        Entry staled() { return stale ? this : new Entry(bytes, written, true); }
+    }
+
+    /** Regenerates the value of a key, e.g. TextFetcher. */
+    public interface Refresher<K> {
+        public void refresh(K key);
+    }
+
+    /** For a bounded TmCache of entries. */
+    public static final Weigher<Entry> WEIGHER = new Weigher<Entry>() {
+        public int weigh(Entry e) { return e.bytes.length + 48; }
+    };
+
+    private final Cache<K, Entry> cache;
+    private final long softTtlMillis;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<K, Boolean> refreshing = new ConcurrentHashMap<K, Boolean>();
+
+    /**
+     * @param softTtlMillis refresh entries older than this; 0 for only evicted entries.
+     * @param threads how many refreshes run at the same time.
+     * @param queueSize how many more may wait.
+     */
+    public StaleCache(Cache<K, Entry> cache, long softTtlMillis, int threads, int queueSize) {
+        this.cache = cache; this.softTtlMillis = softTtlMillis;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "salt4j-cache-refresh"); t.setDaemon(true); return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private boolean isStale(Entry e) {
+        return e.stale || (softTtlMillis > 0 && System.currentTimeMillis() - e.written > softTtlMillis);
+    }
+
+    /** The value, fresh or stale.  If it is stale, refresh it unless key is already refreshing. */
+    public byte[] get(final K key, final Refresher<? super K> refresher) {
+        final Entry e = cache.get(key);
+        if (e == null) return null;
+        if (isStale(e) && refreshing.putIfAbsent(key, Boolean.TRUE) == null) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try { refresher.refresh(key); } finally { refreshing.remove(key); }
+                    }
+                });
+            } catch (RejectedExecutionException x) { refreshing.remove(key); }
+        }
+        return e.bytes;
+    }
+
+    /** The value, fresh or stale. */
+    public byte[] get(K key) {
+        final Entry e = cache.get(key);
+        return e == null ? null : e.bytes;
+    }
+
+    public void put(K key, byte[] value) { cache.put(key, new Entry(value)); }
+
+    /** Mark the entry stale; it is still served until it is refreshed. */
+    public void evict(K key) {
+        epoch.incrementAndGet();
+        final Entry e = cache.get(key);
+        if (e != null && !e.stale) cache.put(key, e.staled());
+    }
+
+    /** True if the entries are in a TmCache, so rolling back restores them. */
+    public boolean isTransactional() { return cache instanceof TmCache; }
+
+    /** If the entries are in a TmCache, take the key's write lock there; see TmCache.writeLock() */
+    public void writeLock(K key) { if (cache instanceof TmCache) ((TmCache<K, Entry>)cache).writeLock(key); }
+
+    /** Like writeLock(), but only if that needn't wait; true if held (or there is no lock). */
+    public boolean tryWriteLock(K key) {
+        return !(cache instanceof TmCache) || ((TmCache<K, Entry>)cache).tryWriteLock(key);
+    }
+
+    /** Really remove the entry. */
+    public void remove(K key) { cache.evict(key); }
+
+    public boolean isStale(K key) {
+        final Entry e = cache.get(key);
+        return e != null && isStale(e);
+    }
+
+    public Map<K, byte[]> getAll(Collection<? extends K> keys) {
+        final Map<K, Entry> entries = Caches.getAll(cache, keys);
+        final HashMap<K, byte[]> result = new HashMap<K, byte[]>(entries.size() * 2);
+        for (Map.Entry<K, Entry> e: entries.entrySet()) result.put(e.getKey(), e.getValue().bytes);
+        return result;
+    }
+
+    public void putAll(Map<? extends K, ? extends byte[]> values) {
+        final HashMap<K, Entry> entries = new HashMap<K, Entry>(values.size() * 2);
+        for (Map.Entry<? extends K, ? extends byte[]> e: values.entrySet()) entries.put(e.getKey(), new Entry(e.getValue()));
+        Caches.putAll(cache, entries);
+    }
+
+    public void evictAll(Collection<? extends K> keys) {
+        epoch.incrementAndGet();
+        final HashMap<K, Entry> staled = new HashMap<K, Entry>();
+        for (Map.Entry<K, Entry> e: Caches.getAll(cache, keys).entrySet()) {
+            if (!e.getValue().stale) staled.put(e.getKey(), e.getValue().staled());
+        }
+        if (!staled.isEmpty()) Caches.putAll(cache, staled);
+    }
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    /** Counts marking entries stale as well as removing them. */
+    public long epoch() { return epoch.get() + Caches.epoch(cache); }
+
+    /** Stop refreshing; queued refreshes are dropped. */
+    public void shutdown() { executor.shutdownNow(); }
+}
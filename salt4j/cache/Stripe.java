@@ -0,0 +1,23 @@
+package salt4j.cache;
+
+/**
+ * The entries of one TmCache stripe.  Methods are synchronized on the stripe and never block on
+ * anything else; TmCache's key locks provide the transactional isolation.
+ */
+abstract class Stripe<K, V> {
+    abstract V get(K key);
+
+    /** Returns the entry that was replaced, or null, for the undo log. */
+    abstract Object put(K key, V value);
+
+    /** Returns the entry that was removed, or null, for the undo log. */
+    abstract Object remove(K key);
+
+    /** Put back an entry returned by put() or remove(); null removes the key. */
+    abstract void restore(K key, Object entry);
+
+    abstract int size();
+
+    /** Drop entries the cache no longer needs: collected, expired... */
+    void gc() {}
+}
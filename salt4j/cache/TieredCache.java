@@ -0,0 +1,79 @@
+package salt4j.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import salt4j.tm.TmLock;
+import salt4j.tm.UndoLog;
+
+/**
+ * A fast cache (l1) in front of a big one (l2), e.g. a TmCache in front of a MappedCache.
+ * Misses in l1 are looked up in l2 and copied into l1; puts and evictions go to both.  If l1 is a
+ * TmCache, rolling back a put also evicts the value from l2.  Hits promoted from an l2 that
+ * was reloaded from disk aren't registered with any evictor; see MappedCache.
+ */
+public class TieredCache<K, V> implements BulkCache<K, V> {
+    final Cache<K, V> l1, l2;
+    private final boolean transactional;
+
+    public TieredCache(Cache<K, V> l1, Cache<K, V> l2) {
+        this.l1 = l1; this.l2 = l2; this.transactional = l1 instanceof TmCache;
+    }
+
+    public V get(K key) {
+        V value = l1.get(key);
+        if (value == null) {
+            value = l2.get(key);
+            if (value != null) promote(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Copy an l2 hit into l1.  In a TmCache, the read lock taken by the miss can't be upgraded
+     * while another transaction also reads the key: the copy is skipped then, and a later get()
+     * makes it.
+     */
+    private void promote(K key, V value) {
+        if (transactional) ((TmCache<K, V>)l1).tryPut(key, value); else l1.put(key, value);
+    }
+
+    public void put(K key, V value) {
+        l1.put(key, value); l2.put(key, value);
+        if (transactional) TmLock.addToUndoLog(undo, 0, key, null);
+    }
+
+    public void evict(K key) { l1.evict(key); l2.evict(key); }
+
+    /** True if l1 is a TmCache, so rolling back restores it. */
+    public boolean isTransactional() { return transactional; }
+
+    /** If l1 is a TmCache, take the key's write lock there; see TmCache.writeLock() */
+    public void writeLock(K key) { if (transactional) ((TmCache<K, V>)l1).writeLock(key); }
+
+    private final UndoLog.Undoable undo = new UndoLog.Undoable() {
+        @SuppressWarnings("unchecked") //logged by put() with a K.
+        public void undo(int slot, Object key, Object previous) { l2.evict((K)key); }
+    };
+
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        final Map<K, V> result = Caches.getAll(l1, keys);
+        if (result.size() < keys.size()) {
+            final ArrayList<K> missing = new ArrayList<K>();
+            for (K key: keys) if (!result.containsKey(key)) missing.add(key);
+            final Map<K, V> found = Caches.getAll(l2, missing);
+            for (Map.Entry<K, V> e: found.entrySet()) promote(e.getKey(), e.getValue());
+            result.putAll(found);
+        }
+        return result;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        Caches.putAll(l1, entries); Caches.putAll(l2, entries);
+        if (transactional) for (K key: entries.keySet()) TmLock.addToUndoLog(undo, 0, key, null);
+    }
+
+    public void evictAll(Collection<? extends K> keys) { Caches.evictAll(l1, keys); Caches.evictAll(l2, keys); }
+
+    public long epoch() { return Caches.epoch(l1) + Caches.epoch(l2); }
+}
@@ -1,77 +1,224 @@
 package salt4j.cache;
 
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import salt4j.cache.Cache;
+import salt4j.tm.LockPolicy;
 import salt4j.tm.TmLock;
+import salt4j.tm.TmLockTable;
+import salt4j.tm.UndoLog;
 
-public class TmCache<K, V> implements Cache<K, V> {
-    private final static class CacheRef<K,V> extends SoftReference<V> {
-        public final K key;
-        public CacheRef(K key, V value, ReferenceQueue<V> refq) {
-            super(value, refq); this.key = key;
-        }
+/**
+ * A transactional cache.  Each key has its own upgradeable read/write TmLock, held until
+ * commit() or rollback(); the stripes' monitors only guard their maps for the duration of a
+ * lookup or an update.
+ *
+ * By default values are held by SoftReferences: the GC decides what to evict, and a background
+ * thread removes the collected entries, one stripe at a time, outside of any transaction.
+ * A cache made with bounded() holds values strongly and evicts by segmented LRU once the total
+ * weight of a stripe passes its share of maxWeight, independently of the GC.
+ */
+public class TmCache<K, V> implements BulkCache<K, V> {
+    private final Stripe<K, V>[] stripes;
+    private final TmLockTable<K> locks;
+    private final int concurrency;
+    private final AtomicLong epoch = new AtomicLong();
+
+    public TmCache(int concurrency) { this(concurrency, "TmCache", null); }
+
+    /**
+     * @param name the name under which the key locks' contention is recorded in LockStats.
+     * @param policy how the key locks wait, or null to follow TmLock.getDefaultPolicy().
+     */
+    public TmCache(int concurrency, String name, LockPolicy policy) {
+        this(concurrency, name, policy, 0, null);
     }
 
-    private final HashMap<K, CacheRef<K,V>>[] maps;
-    private final ReferenceQueue<V>[] queues;
-    private final TmLock locks[];
-    private final int concurrency;
-    
-    public TmCache(int concurrency) {
-        maps = (HashMap<K, CacheRef<K, V>>[])new HashMap[concurrency];
-        queues = (ReferenceQueue<V>[])new ReferenceQueue[concurrency];
-        locks = new TmLock[concurrency];
-        for (int i = 0; i<concurrency; i++) {
-            maps[i] = new HashMap<K, CacheRef<K, V>>();
-            queues[i] = new ReferenceQueue<V>();
-            locks[i] = new TmLock();
-        }
+    /** @param maxWeight 0 for SoftReferences, else the bound on the total weight of the values. */
+    protected TmCache(int concurrency, String name, LockPolicy policy, long maxWeight,
+                      Weigher<? super V> weigher) {
+        @SuppressWarnings("unchecked") final Stripe<K, V>[] s = (Stripe<K, V>[])new Stripe<?, ?>[concurrency];
+        for (int i = 0; i<concurrency; i++) s[i] = maxWeight == 0 ? new SoftStripe<K, V>()
+                : new BoundedStripe<K, V>(Math.max(1, maxWeight / concurrency), weigher);
+        stripes = s;
+        locks = new TmLockTable<K>(concurrency, name, policy);
         this.concurrency = concurrency;
     }
 
-    private int getIndex(K key) { return (key.hashCode() & 0x8FFFFFF) % concurrency; } //lost 1 bit?
+    /** A cache holding at most about maxWeight, as measured by weigher, e.g. Weigher.BYTE_ARRAYS */
+    public static <K, V> TmCache<K, V> bounded(int concurrency, long maxWeight, Weigher<? super V> weigher) {
+        return bounded(concurrency, maxWeight, weigher, "TmCache", null);
+    }
 
-    private final void gc(ReferenceQueue refq, HashMap map) {
-        CacheRef<K,V> ref;
-        while ((ref = (CacheRef<K,V>)refq.poll()) != null) map.remove(ref.key);
+    public static <K, V> TmCache<K, V> bounded(int concurrency, long maxWeight, Weigher<? super V> weigher,
+                                               String name, LockPolicy policy) {
+        if (maxWeight <= 0) throw new IllegalArgumentException("maxWeight must be positive");
+        return new TmCache<K, V>(concurrency, name, policy, maxWeight, weigher);
     }
 
-    public void gc() {
-        for (int i = 0; i < concurrency; i++) locks[i].write();
-        for (int i = 0; i < concurrency; i++) gc(queues[i], maps[i]);
+    /**
+     * Expire entries of a bounded cache this long after they were written, or after they were last
+     * read; 0 means never.  Call before using the cache.
+     */
+    public TmCache<K, V> expireAfter(long afterWriteMillis, long afterAccessMillis) {
+        for (Stripe<K, V> stripe: stripes) {
+            if (!(stripe instanceof BoundedStripe)) throw new IllegalStateException("not a bounded cache");
+            ((BoundedStripe<K, V>)stripe).expireAfter(TimeUnit.MILLISECONDS.toNanos(afterWriteMillis),
+                                                      TimeUnit.MILLISECONDS.toNanos(afterAccessMillis));
+        }
+        return this;
     }
 
+    private int getIndex(K key) { return (key.hashCode() & 0x8FFFFFF) % concurrency; } //lost 1 bit?
+
+    /**
+     * Remove the entries whose values were collected or have expired now, one stripe at a time.
+     * Not needed for collected entries, which are removed in the background anyway.
+     */
+    public void gc() { for (Stripe<K, V> stripe: stripes) stripe.gc(); }
+
     public V get(K key) {
-        final int i = getIndex(key);
-        locks[i].read();
-        CacheRef<K,V> soft = maps[i].get(key);
-        return (soft==null) ? null : soft.get();
+        locks.read(key);
+        return stripes[getIndex(key)].get(key);
+    }
+
+    public void put(K key, V value) {
+        locks.write(key);
+        putLocked(key, value);
     }
-    
-    public void put(final K key, V value) {
+
+    /**
+     * Put only if the key's write lock can be had without waiting, e.g. to fill the cache on a
+     * miss while other transactions hold read locks on the key.  True if it was put.
+     */
+    public boolean tryPut(K key, V value) {
+        if (!locks.tryWrite(key)) return false;
+        putLocked(key, value);
+        return true;
+    }
+
+    private void putLocked(K key, V value) {
         final int i = getIndex(key);
-        locks[i].write();
-        gc(queues[i], maps[i]);
-        final CacheRef<K,V> formerRef = maps[i].put(key, new CacheRef<K, V>(key, value, queues[i]));
-        if (formerRef != null) TmLock.addToUndoLog(new Runnable() {
-            public void run() { maps[i].put(key, formerRef); }
-        });
+        final Object former = stripes[i].put(key, value);
+        TmLock.addToUndoLog(undo, i, key, former); //rollback removes a new key.
     }
 
-    public void evict(final K key) {
+    public void evict(K key) {
+        epoch.incrementAndGet();
+        locks.write(key);
         final int i = getIndex(key);
-        locks[i].write();
-        gc(queues[i], maps[i]);
-        final CacheRef<K,V> formerRef = maps[i].remove(key);
-        if (formerRef != null) TmLock.addToUndoLog(new Runnable() {
-            public void run() { maps[i].put(key, formerRef); }
-        });
+        final Object former = stripes[i].remove(key);
+        if (former != null) TmLock.addToUndoLog(undo, i, key, former);
+    }
+
+    private final UndoLog.Undoable undo = new UndoLog.Undoable() {
+        @SuppressWarnings("unchecked") //logged with a K.
+        public void undo(int i, Object key, Object former) { stripes[i].restore((K)key, former); }
+    };
+
+    /**
+     * Bulk operations lock their keys in one deterministic order (by stripe, then hash, then class
+     * name and, for Comparable keys, compareTo), so two of them can't deadlock each other, and
+     * enter each stripe once.  Unequal keys of a class that isn't Comparable with the same hash
+     * have no order: bulk operations on them can still deadlock, and one of them is aborted.
+     */
+    private final Comparator<K> lockOrder = new Comparator<K>() {
+        @SuppressWarnings("unchecked") //compareTo() is only called on two keys of the same class.
+        public int compare(K a, K b) {
+            final int i = getIndex(a), j = getIndex(b);
+            if (i != j) return i < j ? -1 : 1;
+            final int h = a.hashCode(), g = b.hashCode();
+            if (h != g) return h < g ? -1 : 1;
+            if (a.getClass() != b.getClass()) return a.getClass().getName().compareTo(b.getClass().getName());
+            return a instanceof Comparable ? ((Comparable<Object>)a).compareTo(b) : 0;
+        }
+    };
+
+    private ArrayList<K> lockInOrder(Collection<? extends K> keys, boolean write) {
+        final ArrayList<K> sorted = new ArrayList<K>(keys);
+        Collections.sort(sorted, lockOrder);
+        for (K key: sorted) if (write) locks.write(key); else locks.read(key);
+        return sorted;
+    }
+
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        final ArrayList<K> sorted = lockInOrder(keys, false);
+        final int n = sorted.size();
+        final HashMap<K, V> result = new HashMap<K, V>(n * 2);
+        for (int from = 0; from < n; ) {
+            final int i = getIndex(sorted.get(from));
+            synchronized(stripes[i]) {
+                for (; from < n && getIndex(sorted.get(from)) == i; from++) {
+                    final K key = sorted.get(from);
+                    final V value = stripes[i].get(key);
+                    if (value != null) result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        final ArrayList<K> sorted = lockInOrder(entries.keySet(), true);
+        final int n = sorted.size();
+        for (int from = 0; from < n; ) {
+            final int i = getIndex(sorted.get(from));
+            synchronized(stripes[i]) {
+                for (; from < n && getIndex(sorted.get(from)) == i; from++) {
+                    final K key = sorted.get(from);
+                    TmLock.addToUndoLog(undo, i, key, stripes[i].put(key, entries.get(key)));
+                }
+            }
+        }
+    }
+
+    public void evictAll(Collection<? extends K> keys) {
+        epoch.incrementAndGet();
+        final ArrayList<K> sorted = lockInOrder(keys, true);
+        final int n = sorted.size();
+        for (int from = 0; from < n; ) {
+            final int i = getIndex(sorted.get(from));
+            synchronized(stripes[i]) {
+                for (; from < n && getIndex(sorted.get(from)) == i; from++) {
+                    final K key = sorted.get(from);
+                    final Object former = stripes[i].remove(key);
+                    if (former != null) TmLock.addToUndoLog(undo, i, key, former);
+                }
+            }
+        }
+    }
+
+    public long epoch() { return epoch.get(); }
+
+    /** Take the key's write lock now, e.g. before a monitor that put() is then called under. */
+    public void writeLock(K key) { locks.write(key); }
+
+    /** Take the key's write lock only if that needn't wait; see TmLock.tryWrite()  True if held. */
+    public boolean tryWriteLock(K key) { return locks.tryWrite(key); }
+
+    /** The number of entries, including any the GC has collected but gc() hasn't removed yet. */
+    public int size() { int n = 0; for (Stripe<K, V> stripe: stripes) n += stripe.size(); return n; }
+
+    /** The total weight of a bounded cache, or 0. */
+    public long weight() {
+        long w = 0;
+        for (Stripe<K, V> stripe: stripes) if (stripe instanceof BoundedStripe) w += ((BoundedStripe<K, V>)stripe).weight();
+        return w;
+    }
+
+    /** The number of entries a bounded cache has evicted to stay within its weight. */
+    public long evictions() {
+        long n = 0;
+        for (Stripe<K, V> stripe: stripes) if (stripe instanceof BoundedStripe) n += ((BoundedStripe<K, V>)stripe).evictions();
+        return n;
     }
-    
-    public void writeLock(K key) { locks[getIndex(key)].write(); }
 
     public static void commit() { TmLock.commit(); }
     public static void rollback() { TmLock.rollback(); }
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+package salt4j.cache;
+
+/** The approximate size of a cached value, in bytes or any other unit used for a cache's bound. */
+public interface Weigher<V> {
+    public int weigh(V value);
+
+    /** Array length plus the array header. */
+    public static final Weigher<byte[]> BYTE_ARRAYS = new Weigher<byte[]>() {
+        public int weigh(byte[] value) { return value.length + 16; }
+    };
+
+    /** Bounds the number of entries. */
+    public static final Weigher<Object> ENTRIES = new Weigher<Object>() {
+        public int weigh(Object value) { return 1; }
+    };
+}
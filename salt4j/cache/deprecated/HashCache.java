@@ -2,10 +2,12 @@ package salt4j.cache.deprecated;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.Collection;
 import java.util.HashMap;
-import salt4j.cache.Cache;
+import java.util.Map;
+import salt4j.cache.BulkCache;
 
-public class HashCache<K, V> implements Cache<K, V> {
+public class HashCache<K, V> implements BulkCache<K, V> {
     private static class CacheRef<K,V> extends SoftReference<V> {
         public final K key;
         public CacheRef(K key, V value, ReferenceQueue<V> refq) {
@@ -42,7 +44,23 @@ public class HashCache<K, V> implements Cache<K, V> {
         }
     }
 
-    public synchronized void evict(K key) { gc(); map.remove(key); }
+    public synchronized void evict(K key) { gc(); map.remove(key); epoch++; }
+
+    private long epoch = 0;
+
+    public synchronized long epoch() { return epoch; }
     
+    public synchronized Map<K, V> getAll(Collection<? extends K> keys) {
+        final HashMap<K, V> result = new HashMap<K, V>(keys.size() * 2);
+        for (K key: keys) { final V value = get(key); if (value != null) result.put(key, value); }
+        return result;
+    }
+
+    public synchronized void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> e: entries.entrySet()) put(e.getKey(), e.getValue());
+    }
+
+    public synchronized void evictAll(Collection<? extends K> keys) { for (K key: keys) evict(key); }
+
     public synchronized int size() { gc(); return map.size(); }
 }
\ No newline at end of file
@@ -1,7 +1,14 @@
 package salt4j.cache.evict;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import salt4j.cache.Cache;
+import salt4j.cache.Caches;
+import salt4j.cache.StaleCache;
+import salt4j.cache.TieredCache;
+import salt4j.cache.TmCache;
+import salt4j.tm.TmLock;
 
 /** 
  * Stores a set of cache keys of type K and invalidates them all when evict() is called.
@@ -14,12 +21,37 @@ public class Evictor <K> {
 
     public synchronized void register(K key) { set.add(key); }
 
+    /**
+     * The keys are taken under the cache's monitor, since fills put and register under it, but
+     * evicted after releasing it: a TmCache may wait for their locks, whose owners may be waiting
+     * for the monitor.  A fill that registers a key again meanwhile is evicted too.
+     */
     public void evict() {
-        synchronized(cache) {
-            synchronized(this) {
-                for(K key: set) cache.evict(key);
-                set.clear();
-            }
-        }
+        final ArrayList<K> keys = new ArrayList<K>();
+        synchronized(cache) { take(keys); }
+        evict(cache, keys);
     }
+
+    /**
+     * Move the registered keys into keys.  In a transactional cache, rolling back restores the
+     * evicted entries, so they are registered again then.
+     */
+    synchronized void take(Collection<K> keys) {
+        if (set.isEmpty()) return;
+        final ArrayList<K> taken = new ArrayList<K>(set);
+        set.clear();
+        keys.addAll(taken);
+        if (isTransactional(cache)) TmLock.addToUndoLog(new Runnable() {
+            public void run() { synchronized(Evictor.this) { set.addAll(taken); } }
+        });
+    }
+
+    /** True if rolling back restores what was evicted from cache. */
+    static boolean isTransactional(Cache<?, ?> cache) {
+        return cache instanceof TmCache || (cache instanceof StaleCache && ((StaleCache<?>)cache).isTransactional())
+            || (cache instanceof TieredCache && ((TieredCache<?, ?>)cache).isTransactional());
+    }
+
+    /** Never call with a monitor held; see evict(). */
+    static <K> void evict(Cache<K, ?> cache, Collection<K> keys) { if (!keys.isEmpty()) Caches.evictAll(cache, keys); }
 }
@@ -1,6 +1,8 @@
 package salt4j.cache.evict;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import salt4j.cache.Cache;
 
 /**
@@ -22,12 +24,27 @@ public class EvictorMap<ID, K> {
         evictor.register(key);
     }
 
+    /**
+     * Holds no monitor while evicting, so a transaction holding one of the keys can still
+     * register() another key meanwhile; see Evictor.evict()
+     */
     public void evict(ID id) {
+        final Evictor<K> evictor;
+        synchronized(this) { evictor = map.get(id); }
+        if (evictor != null) evictor.evict();
+    }
+
+    /** Evict the keys registered under any of ids at once, so their locks are taken in one order. */
+    public void evictAll(Collection<? extends ID> ids) {
+        final HashSet<K> keys = new HashSet<K>();
         synchronized(cache) { //always lock cache first.
             synchronized(this) {
-                Evictor<K> evictor = map.get(id);
-                if (evictor != null) evictor.evict();
+                for (ID id: ids) {
+                    final Evictor<K> evictor = map.get(id);
+                    if (evictor != null) evictor.take(keys);
+                }
             }
         }
+        Evictor.evict(cache, keys);
     }
 }
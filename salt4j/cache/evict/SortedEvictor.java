@@ -1,12 +1,16 @@
 package salt4j.cache.evict;
 
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 import salt4j.cache.Cache;
+import salt4j.tm.TmLock;
 
 /**
  * Maintains a Set<K> of keys, ordered by Comparable ORD associated with each key.
  * Allows you invalidate the keys whose associated ORD is >, >=, <, or <= any given value.
+ * Keys are evicted after the monitors are released, as in Evictor.
  */
 public class SortedEvictor<ORD extends Comparable, K> {
     private final Cache<K, ?> cache;
@@ -19,32 +23,40 @@ public class SortedEvictor<ORD extends Comparable, K> {
     }
 
     public void evictAbove(ORD comparable, boolean orEqual) {
+        final ArrayList<K> keys;
         synchronized(cache) {
-            synchronized(this) {
-                NavigableMap<ORD, K> subMap = map.tailMap(comparable, orEqual);
-                for(K key: subMap.values()) cache.evict(key);
-                subMap.clear();
-            }
+            synchronized(this) { keys = take(map.tailMap(comparable, orEqual)); }
         }
+        Evictor.evict(cache, keys);
     }
 
      public void evictBelow(ORD comparable, boolean orEqual) {
-        synchronized(cache) {
-            synchronized(this) {
-                 NavigableMap<ORD, K> subMap = map.headMap(comparable, orEqual);
-                 for(K key: subMap.values()) cache.evict(key);
-                 subMap.clear();
-            }
-        }
+         final ArrayList<K> keys;
+         synchronized(cache) {
+             synchronized(this) { keys = take(map.headMap(comparable, orEqual)); }
+         }
+         Evictor.evict(cache, keys);
      }
 
      public void evictBetween(ORD from, boolean fromInclusive, ORD to, boolean toInclusive) {
-        synchronized(cache) {
-            synchronized(this) {
-                 NavigableMap<ORD, K> subMap = map.subMap(from, fromInclusive, to, toInclusive);
-                 for(K key: subMap.values()) cache.evict(key);
-                 subMap.clear();
-            }
-        }
+         final ArrayList<K> keys;
+         synchronized(cache) {
+             synchronized(this) { keys = take(map.subMap(from, fromInclusive, to, toInclusive)); }
+         }
+         Evictor.evict(cache, keys);
      }
+
+    /** Forget and return the keys of subMap; they are registered again if the eviction is rolled back. */
+    private ArrayList<K> take(NavigableMap<ORD, K> subMap) {
+        final TreeMap<ORD, K> taken = new TreeMap<ORD, K>(subMap);
+        subMap.clear();
+        if (!taken.isEmpty() && Evictor.isTransactional(cache)) TmLock.addToUndoLog(new Runnable() {
+            public void run() {
+                synchronized(SortedEvictor.this) {
+                    for (Map.Entry<ORD, K> e: taken.entrySet()) if (!map.containsKey(e.getKey())) map.put(e.getKey(), e.getValue());
+                }
+            }
+        });
+        return new ArrayList<K>(taken.values());
+    }
 }
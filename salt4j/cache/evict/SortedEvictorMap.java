@@ -3,7 +3,7 @@ package salt4j.cache.evict;
 import java.util.HashMap;
 import salt4j.cache.Cache;
 
-/** Associates each ID with a SortedEvictor */
+/** Associates each ID with a SortedEvictor, which it calls without holding any monitor. */
 public class SortedEvictorMap<ID, ORD extends Comparable, K> {
     private final Cache<K, ?> cache;
     public SortedEvictorMap(Cache<K, ?> cache) { this.cache = cache; }
@@ -20,29 +20,20 @@ public class SortedEvictorMap<ID, ORD extends Comparable, K> {
     }
 
     public void evictAbove(ID id, ORD comparable, boolean inclusive) {
-        synchronized(cache) { //always lock cache first.
-            synchronized(this) {
-                SortedEvictor<ORD, K> evictor = map.get(id);
-                if (evictor != null) evictor.evictAbove(comparable, inclusive);
-            }
-        }
+        final SortedEvictor<ORD, K> evictor;
+        synchronized(this) { evictor = map.get(id); }
+        if (evictor != null) evictor.evictAbove(comparable, inclusive); //locks the cache itself.
     }
 
     public void evictBelow(ID id, ORD comparable, boolean inclusive) {
-        synchronized(cache) { //always lock cache first.
-            synchronized(this) {
-                SortedEvictor<ORD, K> evictor = map.get(id);
-                if (evictor != null) evictor.evictBelow(comparable, inclusive);
-            }
-        }
+        final SortedEvictor<ORD, K> evictor;
+        synchronized(this) { evictor = map.get(id); }
+        if (evictor != null) evictor.evictBelow(comparable, inclusive);
     }
 
     public void evictBetween(ID id, ORD from, boolean fromInclusive, ORD to, boolean toInclusive) {
-          synchronized(cache) { //always lock cache first.
-            synchronized(this) {
-                SortedEvictor<ORD, K> evictor = map.get(id);
-                if (evictor != null) evictor.evictBetween(from, fromInclusive, to, toInclusive);
-            }
-        }
+        final SortedEvictor<ORD, K> evictor;
+        synchronized(this) { evictor = map.get(id); }
+        if (evictor != null) evictor.evictBetween(from, fromInclusive, to, toInclusive);
     }
 }
@@ -3,4 +3,7 @@ package salt4j.core;
 /** Use Factory<E> when you need to create a generic object.  New E() doesn't compile. */
 public abstract class Factory<E> {
     abstract public E create();
+
+    /** Called when an object from create() is no longer used, so it may be reused. */
+    public void recycle(E e) {}
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package salt4j.text;
+
+/**
+ * A few spare buffers for each thread, so page writers (see HtmlWriter(true)) don't allocate, and
+ * grow by doubling, a new buffer for every page.  New buffers are sized from a moving average of
+ * the pages written on the thread, so a large page doesn't start at 1 KB.  Huge buffers are never
+ * kept.  Writers of fragments don't use them.
+ */
+final class Buffers {
+    static final int MIN = 1024, MAX_KEPT = 1 << 20;
+    static final byte[] EMPTY = new byte[0];
+
+    private static final ThreadLocal<Buffers> LOCAL = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue() { return new Buffers(); }
+    };
+
+    private final byte[][] spare = new byte[4][];
+    private int spares = 0;
+    private int average = MIN; //of the sizes observed.
+
+    private int target() {
+        final int wanted = average + (average >> 2);
+        return wanted <= MIN ? MIN : Math.min(MAX_KEPT, Integer.highestOneBit(wanted - 1) << 1);
+    }
+
+    /** A buffer of about the size of the pages written out on this thread. */
+    static byte[] take() {
+        final Buffers l = LOCAL.get();
+        final int target = l.target();
+        while (l.spares > 0) {
+            final byte[] b = l.spare[--l.spares]; l.spare[l.spares] = null;
+            if (b.length >= target >> 1) return b; //else too small to bother.
+        }
+        return new byte[target];
+    }
+
+    /** Record the size of a page written out to a response. */
+    static void observe(int size) { final Buffers l = LOCAL.get(); l.average += (size - l.average) >> 3; }
+
+    /** Keep b for take(), unless it is huge or there are enough spares. */
+    static void give(byte[] b) {
+        final Buffers l = LOCAL.get();
+        if (b.length > 0 && b.length <= MAX_KEPT && l.spares < l.spare.length) l.spare[l.spares++] = b;
+    }
+}
@@ -0,0 +1,93 @@
+package salt4j.text;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A ByteArrayOutputStream that can also append straight from a ByteBuffer, direct or not, and
+ * encode text as UTF-8 without an encoder.
+ */
+class Bytes extends ByteArrayOutputStream {
+    Bytes(int size) { super(size); }
+
+    Bytes(byte[] buf) { super(0); this.buf = buf; }
+
+    /** Empty this, using b from now on, and return the former buffer. */
+    byte[] swap(byte[] b) { final byte[] former = buf; buf = b; count = 0; return former; }
+
+    /** Make room for n more bytes. */
+    void reserve(int n) {
+        if (count + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + n));
+    }
+
+    byte[] buf() { return buf; }
+    int free() { return buf.length - count; }
+    void advance(int n) { count += n; }
+
+    /** Append s[from, to) as UTF-8; unpaired surrogates become '?', as with an OutputStreamWriter. */
+    void writeUTF8(CharSequence s, int from, int to) {
+        reserve((to - from) * 3);
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) buf[count++] = (byte)c;
+            else if (c < 0x800) {
+                buf[count++] = (byte)(0xC0 | c >> 6); buf[count++] = (byte)(0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte)(0xF0 | cp >> 18); buf[count++] = (byte)(0x80 | cp >> 12 & 0x3F);
+                    buf[count++] = (byte)(0x80 | cp >> 6 & 0x3F); buf[count++] = (byte)(0x80 | cp & 0x3F);
+                } else buf[count++] = '?';
+            } else {
+                buf[count++] = (byte)(0xE0 | c >> 12); buf[count++] = (byte)(0x80 | c >> 6 & 0x3F);
+                buf[count++] = (byte)(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private static final byte[][] ENTITIES = new byte['>' + 1][];
+    static {
+        ENTITIES['"'] = "&quot;".getBytes(); ENTITIES['&'] = "&amp;".getBytes();
+        ENTITIES['<'] = "&lt;".getBytes(); ENTITIES['>'] = "&gt;".getBytes();
+    }
+
+    /** Append s[from, to) as UTF-8, escaping the characters that are special in HTML. */
+    void writeHtml(CharSequence s, int from, int to) {
+        int start = from;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c <= '>' && ENTITIES[c] != null) {
+                writeUTF8(s, start, i);
+                write(ENTITIES[c], 0, ENTITIES[c].length);
+                start = i + 1;
+            }
+        }
+        writeUTF8(s, start, to);
+    }
+
+    /** Append the decimal digits of n. */
+    void writeLong(long n) {
+        if (n == Long.MIN_VALUE) { writeUTF8("-9223372036854775808", 0, 20); return; }
+        reserve(20);
+        if (n < 0) { buf[count++] = '-'; n = -n; }
+        int digits = 1;
+        for (long m = n; m >= 10; m /= 10) digits++;
+        for (int i = count + digits - 1; i >= count; i--) { buf[i] = (byte)('0' + n % 10); n /= 10; }
+        count += digits;
+    }
+
+    /** Append d as Double.toString() would; only whole numbers are written without a String. */
+    void writeDouble(double d) {
+        if (d == (long)d && Math.abs(d) < 1e7 && (d != 0 || 1 / d > 0)) { writeLong((long)d); write('.'); write('0'); }
+        else { final String s = Double.toString(d); writeUTF8(s, 0, s.length()); }
+    }
+
+    /** Append the remaining bytes of src. */
+    int write(ByteBuffer src) {
+        final int n = src.remaining();
+        reserve(n);
+        src.get(buf, count, n); count += n;
+        return n;
+    }
+}
@@ -0,0 +1,53 @@
+package salt4j.text;
+
+import java.util.zip.Deflater;
+
+/**
+ * Fragments compressed once, when they are generated, so pages can be sent gzipped without
+ * compressing them again on every request.
+ *
+ * A compressed fragment is 0xFF (never a byte of UTF-8), the length of the text (4 bytes, big
+ * endian), the text, then the text as raw deflate blocks ending with a sync flush.  Such blocks
+ * can be concatenated with any others: see HtmlWriter.writeTo(request, response).
+ */
+public class Fragments {
+    static final int MAGIC = 0xFF;
+
+    /** True if b[offset] starts a compressed fragment. */
+    static boolean isCompressed(byte[] b, int offset, int len) { return len > 0 && (b[offset] & 0xFF) == MAGIC; }
+
+    static int textLength(byte[] b, int offset) {
+        return (b[offset + 1] & 0xFF) << 24 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 8 | (b[offset + 4] & 0xFF);
+    }
+
+    /** Compress a fragment of UTF-8 text, e.g. from HtmlWriter.getBytes(). */
+    public static byte[] compress(byte[] text) {
+        final Bytes out = new Bytes(text.length / 3 + 64);
+        out.write(MAGIC);
+        out.write(text.length >>> 24); out.write(text.length >>> 16); out.write(text.length >>> 8); out.write(text.length);
+        out.write(text, 0, text.length);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try { deflate(deflater, text, 0, text.length, out); }
+        finally { deflater.end(); }
+        return out.toByteArray();
+    }
+
+    /** The text of the fragment in b. */
+    public static byte[] text(byte[] b) {
+        if (!isCompressed(b, 0, b.length)) return b;
+        final byte[] text = new byte[textLength(b, 0)];
+        System.arraycopy(b, 5, text, 0, text.length);
+        return text;
+    }
+
+    /** Append b[offset, offset + len) to out as deflate blocks that end on a byte boundary. */
+    static void deflate(Deflater deflater, byte[] b, int offset, int len, Bytes out) {
+        deflater.setInput(b, offset, len);
+        int n, free;
+        do { //a full buffer may not be the end.
+            out.reserve(Math.max(64, len / 2)); free = out.free();
+            n = deflater.deflate(out.buf(), out.size(), free, Deflater.SYNC_FLUSH);
+            out.advance(n);
+        } while (n == free);
+    }
+}
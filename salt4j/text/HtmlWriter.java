@@ -1,66 +1,376 @@
 package salt4j.text;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.lang.StringEscapeUtils;
+import salt4j.cache.ByteCache;
+import salt4j.core.Factory;
 
 /**
  * Write buffer some unicode text and write it to the web.  Provides simple formatting.
+ * Cached fragments are held by reference (see writeFragment) and only copied when written out.
  */
 public class HtmlWriter {
     protected final static Charset UTF8 = Charset.forName("UTF-8");
 
-    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
-    final Writer writer = new OutputStreamWriter(bytes, UTF8);
-
-    private void replaceInto(String pattern, Object[] args) throws IOException {
-        final int l = pattern.length();
-        int formerPosition = 0;
-        for (Object o: args) {
-            int newPosition = pattern.indexOf("{?}", formerPosition);
-            if (newPosition == -1) throw new RuntimeException("too many params");
-            writer.append(pattern, formerPosition, newPosition);
-            writer.append(o != null ? o.toString() : "{?}");
-            formerPosition = newPosition + 3; // length of "{?}"
-        }
-        if (formerPosition < l && pattern.indexOf("{?}", formerPosition)!=-1) throw
-                new RuntimeException("too few params");
-        else writer.append(pattern, formerPosition, l);
+    private static final int SMALL = 256; //the first buffer of a writer that isn't a page.
+
+    final boolean page; final Bytes bytes;
+
+    /** A writer of a fragment or other short text: its buffer starts small. */
+    public HtmlWriter() { this(false); }
+
+    /**
+     * @param page true for a writer of a whole page: its buffer is sized like the pages recently
+     *             written to a response on this thread, and is released once it is written to one.
+     */
+    public HtmlWriter(boolean page) {
+        this.page = page; bytes = page ? new Bytes(Buffers.take()) : new Bytes(SMALL);
     }
 
-    public HtmlWriter echo(String string) throws IOException { writer.append(string); return this; }
-    public HtmlWriter echo(Object o) throws IOException { writer.append(o.toString()); return this; }
+    public HtmlWriter echo(String string) throws IOException { bytes.writeUTF8(string, 0, string.length()); return this; }
+    public HtmlWriter echo(Object o) throws IOException { return echo(o.toString()); }
+    public HtmlWriter echo(CharSequence s) throws IOException { bytes.writeUTF8(s, 0, s.length()); return this; }
+    public HtmlWriter echo(char c) throws IOException { return echo(String.valueOf(c)); }
+    public HtmlWriter echo(int i) throws IOException { bytes.writeLong(i); return this; }
+    public HtmlWriter echo(long l) throws IOException { bytes.writeLong(l); return this; }
+    public HtmlWriter echo(float f) throws IOException { return echo(Float.toString(f)); }
+    public HtmlWriter echo(double d) throws IOException { bytes.writeDouble(d); return this; }
+
+    /** Write s escaped for HTML, as format() does with String parameters. */
+    public HtmlWriter escape(CharSequence s) throws IOException { bytes.writeHtml(s, 0, s.length()); return this; }
 
+    /** Fill in each {?} of pattern with an arg; see Template. */
     public HtmlWriter format(String pattern, Object ... args) throws IOException {
-        for (int i = 0; i< args.length; i++) {
-            if (args[i] instanceof String)
-                args[i] = StringEscapeUtils.escapeHtml((String)args[i]);
-        }
-        replaceInto(pattern, args); return this;
+        return format(Template.compile(pattern), args);
+    }
+
+    public HtmlWriter format(Template template, Object ... args) throws IOException {
+        template.render(bytes, args); return this;
+    }
+
+    /** Fill in a template of one parameter without boxing it; ints, shorts and bytes widen to long. */
+    public HtmlWriter format(Template template, long value) throws IOException {
+        template.render(bytes, value); return this;
+    }
+
+    public HtmlWriter format(Template template, double value) throws IOException {
+        template.render(bytes, value); return this;
+    }
+
+    //so chars and floats don't widen into the numeric overloads, as with echo().
+    public HtmlWriter format(Template template, char value) throws IOException {
+        return format(template, new Object[] { value });
+    }
+
+    public HtmlWriter format(Template template, float value) throws IOException {
+        return format(template, new Object[] { value });
+    }
+
+    //so a boxed value isn't unboxed into the overloads above, which would throw if it is null.
+    public HtmlWriter format(Template template, Number value) throws IOException {
+        return format(template, new Object[] { value });
+    }
+
+    public HtmlWriter format(Template template, Character value) throws IOException {
+        return format(template, new Object[] { value });
     }
 
-    public HtmlWriter writeBytes(byte[] b) throws IOException {
-        writer.flush(); bytes.write(b); return this;
+    /**
+     * A fragment held by reference: its text is b[offset, offset + len), inserted in bytes at at.
+     * If it was compressed (see Fragments), its deflate blocks are b[zOffset, zOffset + zLen).
+     * A fragment kept from a KeepingChannel is in buf instead of b, and is released when done.
+     */
+    private static final class Part {
+        final int at; final byte[] b; final ByteBuffer buf; final int offset, len, zOffset, zLen;
+        final Runnable release;
+        Part(int at, byte[] b, int offset, int len, int zOffset, int zLen) {
+            this(at, b, null, offset, len, zOffset, zLen, null);
+        }
+        Part(int at, byte[] b, ByteBuffer buf, int offset, int len, int zOffset, int zLen, Runnable release) {
+            this.at = at; this.b = b; this.buf = buf; this.offset = offset; this.len = len;
+            this.zOffset = zOffset; this.zLen = zLen; this.release = release;
+        }
+
+        ByteBuffer slice(int from, int n) {
+            if (b != null) return ByteBuffer.wrap(b, from, n);
+            final ByteBuffer s = buf.duplicate();
+            s.limit(from + n); s.position(from);
+            return s;
+        }
+
+        ByteBuffer text() { return slice(offset, len); }
     }
 
+    private final ArrayList<Part> parts = new ArrayList<Part>(0);
+    private int referenced = 0; //the length of the parts' text.
+
+    /** Smaller uncompressed fragments are copied, which is cheaper than keeping a reference. */
+    static final int MIN_REFERENCE = 256;
+
+    private static final int CHUNK = 8192; //kept parts off the heap are read through a byte[] this big.
+
+    /** Append bytes as they are, e.g. UTF-8 text.  b is copied. */
+    public HtmlWriter writeBytes(byte[] b) throws IOException { bytes.write(b, 0, b.length); return this; }
+
     public HtmlWriter writeBytes(byte[] b, int offset, int len) throws IOException {
-        writer.flush(); bytes.write(b, offset, len); return this;
+        bytes.write(b, offset, len); return this;
+    }
+
+    /** Append the remaining bytes of b. */
+    public HtmlWriter writeBytes(ByteBuffer b) throws IOException { bytes.write(b); return this; }
+
+    /**
+     * Append a fragment that will never change, e.g. from a Cache: UTF-8 text, or a compressed
+     * fragment (see Fragments), whose deflate blocks are kept for gzipping.  Unlike writeBytes(),
+     * it isn't copied: the writer keeps a reference until the page is written out.
+     */
+    public HtmlWriter writeFragment(byte[] b) throws IOException {
+        if (Fragments.isCompressed(b, 0, b.length)) {
+            final int textLength = Fragments.textLength(b, 0);
+            reference(new Part(bytes.size(), b, 5, textLength, 5 + textLength, b.length - 5 - textLength));
+        } else if (b.length >= MIN_REFERENCE) reference(new Part(bytes.size(), b, 0, b.length, 0, -1));
+        else bytes.write(b, 0, b.length);
+        return this;
+    }
+
+    /**
+     * Append a fragment stored e.g. off the heap; a compressed one is copied to keep it, as b may
+     * change after.  ByteCache.writeTo(key, channel()) keeps fragments without copying them.
+     */
+    public HtmlWriter writeFragment(ByteBuffer b) throws IOException {
+        if (b.hasRemaining() && (b.get(b.position()) & 0xFF) == Fragments.MAGIC) {
+            final byte[] copy = new byte[b.remaining()];
+            b.get(copy);
+            writeFragment(copy);
+        } else bytes.write(b);
+        return this;
+    }
+
+    /** Keep b by reference, like writeFragment(byte[]), until the writer is reset or released. */
+    private void keep(ByteBuffer b, Runnable release) {
+        final int from = b.position(), n = b.remaining();
+        final ByteBuffer buf = b.duplicate();
+        if (n > 0 && (b.get(from) & 0xFF) == Fragments.MAGIC) {
+            final int textLength = b.getInt(from + 1);
+            reference(new Part(bytes.size(), null, buf, from + 5, textLength, from + 5 + textLength, n - 5 - textLength, release));
+        } else if (n >= MIN_REFERENCE) reference(new Part(bytes.size(), null, buf, from, n, 0, -1, release));
+        else { bytes.write(buf); release.run(); }
+        b.position(from + n);
+    }
+
+    private void reference(Part part) { parts.add(part); referenced += part.len; }
+
+    /** Forget the parts, releasing the kept ones. */
+    private void clearParts() {
+        try { for (Part p: parts) if (p.release != null) p.release.run(); }
+        finally { parts.clear(); referenced = 0; }
+    }
+
+    /** A channel that appends fragments to this writer, for ByteCache.writeTo() */
+    public WritableByteChannel channel() { return channel; }
+
+    private final ByteCache.KeepingChannel channel = new ByteCache.KeepingChannel() {
+        public int write(ByteBuffer src) throws IOException {
+            final int n = src.remaining(); writeFragment(src); return n;
+        }
+        public void keep(ByteBuffer b, Runnable release) { HtmlWriter.this.keep(b, release); }
+        public boolean isOpen() { return true; }
+        public void close() {}
+    };
+
+    /**
+     * Empty this writer to write another page, keeping its buffer unless it is huge.  Override to
+     * reset any state of a subclass.
+     */
+    public HtmlWriter reset() {
+        if (bytes.buf().length > Buffers.MAX_KEPT) bytes.swap(page ? Buffers.take() : new byte[SMALL]);
+        else bytes.reset();
+        clearParts();
+        return this;
+    }
+
+    /**
+     * Give a page writer's buffer to the next one created on this thread; writeTo(response) does.
+     * Call once its text is written out some other way.  The writer is then empty.
+     */
+    public void release() {
+        final byte[] b = bytes.swap(Buffers.EMPTY);
+        if (page) Buffers.give(b);
+        clearParts();
+    }
+
+    /** A Factory that reuses the writers recycled on the same thread, e.g. for TextFetcher. */
+    public static abstract class Pool<E extends HtmlWriter> extends Factory<E> {
+        private final ThreadLocal<ArrayList<E>> free = new ThreadLocal<ArrayList<E>>() {
+            protected ArrayList<E> initialValue() { return new ArrayList<E>(4); }
+        };
+
+        /** Make a new writer when none is free. */
+        abstract protected E make();
+
+        public final E create() {
+            final ArrayList<E> writers = free.get();
+            return writers.isEmpty() ? make() : writers.remove(writers.size() - 1);
+        }
+
+        public void recycle(E writer) {
+            writer.reset();
+            final ArrayList<E> writers = free.get();
+            if (writers.size() < 4) writers.add(writer);
+        }
+    }
+
+    /** Text is encoded as it is written, so there is nothing to flush. */
+    public HtmlWriter flush() throws IOException { return this; }
+
+    /** The length of the text in bytes. */
+    public int size() { return bytes.size() + referenced; }
+
+    public String getString() throws IOException { return new String(getBytes(), UTF8); }
+
+    /** The text in one array.  writeTo() doesn't need it. */
+    public byte[] getBytes() throws IOException {
+        final byte[] all = new byte[size()];
+        int from = 0, to = 0;
+        for (Part p: parts) {
+            System.arraycopy(bytes.buf(), from, all, to, p.at - from); to += p.at - from; from = p.at;
+            if (p.b != null) System.arraycopy(p.b, p.offset, all, to, p.len); else p.text().get(all, to, p.len);
+            to += p.len;
+        }
+        System.arraycopy(bytes.buf(), from, all, to, bytes.size() - from);
+        return all;
+    }
+
+    /** The text, without copying it. */
+    public ByteBuffer[] buffers() {
+        final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(parts.size() * 2 + 1);
+        int from = 0;
+        for (Part p: parts) {
+            if (p.at > from) buffers.add(ByteBuffer.wrap(bytes.buf(), from, p.at - from));
+            buffers.add(p.text());
+            from = p.at;
+        }
+        if (bytes.size() > from) buffers.add(ByteBuffer.wrap(bytes.buf(), from, bytes.size() - from));
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
     }
 
-    public HtmlWriter flush() throws IOException { writer.flush(); return this; }
+    /** Write the text with gathering writes. */
+    public void writeTo(GatheringByteChannel out) throws IOException {
+        final ByteBuffer[] buffers = buffers();
+        final long size = size();
+        for (long written = 0; written < size; ) written += out.write(buffers);
+    }
 
-    public String getString() throws IOException { writer.flush(); return bytes.toString("UTF-8"); }
+    public void writeTo(OutputStream out) throws IOException {
+        int from = 0;
+        byte[] chunk = null; //to copy kept parts through.
+        for (Part p: parts) {
+            out.write(bytes.buf(), from, p.at - from); from = p.at;
+            if (p.b != null) out.write(p.b, p.offset, p.len);
+            else {
+                if (chunk == null) chunk = new byte[CHUNK];
+                for (ByteBuffer t = p.text(); t.hasRemaining(); ) {
+                    final int n = Math.min(chunk.length, t.remaining());
+                    t.get(chunk, 0, n); out.write(chunk, 0, n);
+                }
+            }
+        }
+        out.write(bytes.buf(), from, bytes.size() - from);
+    }
 
-    public byte[] getBytes() throws IOException { writer.flush(); return bytes.toByteArray(); }
-    
+    /**
+     * A page written this way sizes the buffers of the page writers created next on this thread,
+     * and is then released: see release().
+     */
     public void writeTo(HttpServletResponse response) throws IOException {
-        flush();
+        if (page) Buffers.observe(size());
         if (response.getContentType() == null) response.setContentType("text/html;charset=UTF-8");
-        response.setContentLength(bytes.size());
-        bytes.writeTo(response.getOutputStream());
+        response.setContentLength(size());
+        writeTo(response.getOutputStream());
+        if (page) release();
+    }
+
+    /** Write gzipped if the request accepts it, reusing the deflate blocks of compressed fragments. */
+    public void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(request.getHeader("Accept-Encoding"))) { writeTo(response); return; }
+        if (page) Buffers.observe(size());
+        final Bytes gzip = gzip();
+        if (page) release();
+        if (response.getContentType() == null) response.setContentType("text/html;charset=UTF-8");
+        response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(gzip.size());
+        gzip.writeTo(response.getOutputStream());
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding: acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip")) continue;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try { return Double.parseDouble(param.substring(2)) > 0; }
+                    catch (NumberFormatException e) { return false; }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+    /**
+     * The text as gzip.  The fragments' deflate blocks are copied; the rest is deflated now.  A
+     * copied fragment isn't in the deflater's window, so the deflater starts over after each one.
+     * A final empty block and the trailer end the stream.
+     */
+    Bytes gzip() {
+        final byte[] text = bytes.buf(); final int size = bytes.size();
+        final Bytes out = new Bytes(size() / 4 + 64);
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            int from = 0;
+            byte[] chunk = null; //to copy kept parts through.
+            for (Part p: parts) {
+                if (p.at > from) { Fragments.deflate(deflater, text, from, p.at - from, out); crc.update(text, from, p.at - from); }
+                from = p.at;
+                if (p.zLen >= 0) { out.write(p.slice(p.zOffset, p.zLen)); deflater.reset(); }
+                if (p.b != null) {
+                    if (p.zLen < 0) Fragments.deflate(deflater, p.b, p.offset, p.len, out);
+                    crc.update(p.b, p.offset, p.len);
+                } else {
+                    if (chunk == null) chunk = new byte[CHUNK];
+                    for (ByteBuffer t = p.text(); t.hasRemaining(); ) {
+                        final int n = Math.min(chunk.length, t.remaining());
+                        t.get(chunk, 0, n);
+                        if (p.zLen < 0) Fragments.deflate(deflater, chunk, 0, n, out);
+                        crc.update(chunk, 0, n);
+                    }
+                }
+            }
+            if (size > from) { Fragments.deflate(deflater, text, from, size - from, out); crc.update(text, from, size - from); }
+        } finally { deflater.end(); }
+        out.write(3); out.write(0); //a final, empty block of fixed codes.
+        writeIntLE(out, (int)crc.getValue()); writeIntLE(out, size());
+        return out;
+    }
+
+    private static void writeIntLE(Bytes out, int i) {
+        out.write(i); out.write(i >>> 8); out.write(i >>> 16); out.write(i >>> 24);
     }
 }
\ No newline at end of file
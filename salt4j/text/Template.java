@@ -0,0 +1,89 @@
+package salt4j.text;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pattern for HtmlWriter.format(), parsed once: the text around each {?} is encoded as UTF-8
+ * when it is compiled, and the parameters are filled in straight into the writer's buffer.
+ * String parameters are escaped; other parameters are written as with toString(), and nulls as {?}.
+ * Numbers and CharSequences are written without making a String.
+ */
+public class Template {
+    private static final ConcurrentHashMap<String, Template> TEMPLATES = new ConcurrentHashMap<String, Template>();
+    private static final int MAX_CACHED = 10000; //beyond, patterns are probably built at run time.
+
+    private final String pattern;
+    private final byte[][] literals; //one more than the parameters.
+
+    private Template(String pattern) {
+        this.pattern = pattern;
+        int params = 0;
+        for (int i = pattern.indexOf("{?}"); i != -1; i = pattern.indexOf("{?}", i + 3)) params++;
+        literals = new byte[params + 1][];
+        int from = 0;
+        for (int i = 0; i < params; i++) {
+            final int to = pattern.indexOf("{?}", from);
+            literals[i] = utf8(pattern, from, to);
+            from = to + 3; // length of "{?}"
+        }
+        literals[params] = utf8(pattern, from, pattern.length());
+    }
+
+    private static byte[] utf8(String s, int from, int to) {
+        final Bytes b = new Bytes(to - from);
+        b.writeUTF8(s, from, to);
+        return b.toByteArray();
+    }
+
+    /** The template of pattern, compiled on first use. */
+    public static Template compile(String pattern) {
+        Template t = TEMPLATES.get(pattern);
+        if (t == null) {
+            t = new Template(pattern);
+            if (TEMPLATES.size() < MAX_CACHED) TEMPLATES.putIfAbsent(pattern, t);
+        }
+        return t;
+    }
+
+    public int params() { return literals.length - 1; }
+
+    public String toString() { return pattern; }
+
+    private void checkParams(int n) {
+        if (n != literals.length - 1)
+            throw new RuntimeException(n < literals.length - 1 ? "too few params" : "too many params");
+    }
+
+    /** Render a template of one parameter without boxing it. */
+    void render(Bytes out, long value) throws IOException {
+        checkParams(1);
+        out.write(literals[0], 0, literals[0].length);
+        out.writeLong(value);
+        out.write(literals[1], 0, literals[1].length);
+    }
+
+    void render(Bytes out, double value) throws IOException {
+        checkParams(1);
+        out.write(literals[0], 0, literals[0].length);
+        out.writeDouble(value);
+        out.write(literals[1], 0, literals[1].length);
+    }
+
+    void render(Bytes out, Object[] args) throws IOException {
+        checkParams(args.length);
+        for (int i = 0; i < args.length; i++) {
+            out.write(literals[i], 0, literals[i].length);
+            final Object o = args[i];
+            if (o instanceof String) out.writeHtml((String)o, 0, ((String)o).length());
+            else if (o instanceof Integer || o instanceof Long) out.writeLong(((Number)o).longValue());
+            else if (o instanceof Double) out.writeDouble((Double)o);
+            else if (o instanceof CharSequence) out.writeUTF8((CharSequence)o, 0, ((CharSequence)o).length());
+            else {
+                final String s = o == null ? "{?}" : o.toString();
+                out.writeUTF8(s, 0, s.length());
+            }
+        }
+        out.write(literals[args.length], 0, literals[args.length].length);
+    }
+}
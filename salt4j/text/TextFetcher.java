@@ -1,14 +1,37 @@
 package salt4j.text;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import salt4j.cache.ByteCache;
 import salt4j.cache.Cache;
+import salt4j.cache.Caches;
+import salt4j.cache.StaleCache;
+import salt4j.cache.TieredCache;
+import salt4j.cache.TmCache;
 import salt4j.core.Factory;
+import salt4j.tm.TmLock;
 
-/** Helper class for fetching text fragments from a Cache with keys of type K */
+/**
+ * Helper class for fetching text fragments from a Cache with keys of type K.
+ *
+ * Hits don't lock the cache.  Concurrent misses for the same key wait for one of them to
+ * generate the fragment; misses for different keys generate in parallel.  A fragment isn't
+ * cached if anything was evicted from the cache while it was being generated (see BulkCache.epoch()),
+ * since it may be stale.
+ * In a TmCache, the waiters' read locks delay the put until their transactions end.
+ *
+ * With a StaleCache, invalidated or old fragments keep being served while they are regenerated
+ * in the background, so generate() and setupInvalidators() must not depend on the request.
+ */
 abstract public class TextFetcher<E extends HtmlWriter, K> {
     public static transient boolean disableAll = false;
 
+    /** Cache fragments compressed as well, for HtmlWriter.writeTo(request, response); see Fragments. */
+    public static transient boolean compressFragments = false;
+
     abstract protected E generate(E dest) throws IOException, SQLException;
 
     final Cache<K, byte[]> cache; final E dest; final Factory<E> factory;
@@ -16,22 +39,121 @@ abstract public class TextFetcher<E extends HtmlWriter, K> {
         this.cache = cache; this.factory = factory; this.dest = dest;
     }
 
+    /** A generation in progress of the entry for key in cache. */
+    private static final class Flight {
+        final Cache<?, ?> cache; final Object key;
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] bytes = null; //null if generation failed.
+
+        Flight(Cache<?, ?> cache, Object key) { this.cache = cache; this.key = key; }
+
+        public boolean equals(Object o) {
+            return o instanceof Flight && ((Flight)o).cache == cache && ((Flight)o).key.equals(key);
+        }
+        public int hashCode() { return System.identityHashCode(cache) * 31 + key.hashCode(); }
+    }
+
+    private static final ConcurrentHashMap<Flight, Flight> FLIGHTS = new ConcurrentHashMap<Flight, Flight>();
+
     public final E fetch(K key) throws SQLException, IOException {
         if (disableAll) return generate(dest);
-        else {
+        while (true) {
             byte[] htmlBytes;
-            synchronized (cache) {
-                htmlBytes = cache.get(key);
-                if (htmlBytes == null) {
-                    htmlBytes = generate(factory.create()).getBytes();
-                    cache.put(key, htmlBytes);
-                    setupInvalidators();
+            if (cache instanceof StaleCache) { //stale hits are refreshed in the background.
+                if ((htmlBytes = ((StaleCache<K>)cache).get(key, refresher)) != null) {
+                    dest.writeFragment(htmlBytes); return dest;
                 }
+            } else if (cache instanceof ByteCache) { //copy straight from the cache, e.g. from off the heap.
+                if (((ByteCache<K>)cache).writeTo(key, dest.channel())) return dest;
+            } else if ((htmlBytes = cache.get(key)) != null) { dest.writeFragment(htmlBytes); return dest; }
+
+            final Flight flight = new Flight(cache, key);
+            final Flight leader = FLIGHTS.putIfAbsent(flight, flight);
+            if (leader != null) {
+                try { leader.done.await(); }
+                catch (InterruptedException e) { throw new InterruptedIOException(); }
+                if (leader.bytes == null) continue; //it failed: try again.
+                htmlBytes = leader.bytes;
+            } else try {
+                htmlBytes = cache.get(key); //a flight may have landed since the miss.
+                if (htmlBytes == null) {
+                    final long epoch = Caches.epoch(cache);
+                    htmlBytes = generateFragment();
+                    //release the waiters first: in a TmCache, the put waits for their read locks.
+                    flight.bytes = htmlBytes; flight.done.countDown();
+                    writeLock(key); //before the monitor.
+                    fill(key, htmlBytes, epoch);
+                } else flight.bytes = htmlBytes;
+            } finally {
+                FLIGHTS.remove(flight);
+                flight.done.countDown();
+            }
+            dest.writeFragment(htmlBytes); return dest;
+        }
+    }
+
+    /**
+     * Take the key's write lock, if the cache has one, before the cache's monitor: nobody may wait
+     * for a key lock while holding the monitor, or an evictor in a transaction holding the key
+     * could deadlock with them unseen by TmLock.  The evictors take their keys under the monitor
+     * and evict them after releasing it.
+     */
+    private void writeLock(K key) {
+        if (cache instanceof TmCache) ((TmCache<K, byte[]>)cache).writeLock(key);
+        else if (cache instanceof StaleCache) ((StaleCache<K>)cache).writeLock(key);
+        else if (cache instanceof TieredCache) ((TieredCache<K, byte[]>)cache).writeLock(key);
+    }
+
+    /**
+     * Put and register the fragment under the cache's monitor, unless something was evicted since
+     * epoch.  An eviction counted during the put may have removed the key just before it, so then
+     * the fragment is evicted again.
+     */
+    private void fill(K key, byte[] htmlBytes, long epoch) throws SQLException, IOException {
+        synchronized (cache) { //the evictors take their keys under it.
+            if (Caches.epoch(cache) == epoch) {
+                cache.put(key, htmlBytes);
+                if (Caches.epoch(cache) != epoch) cache.evict(key);
             }
-            dest.writeBytes(htmlBytes); return dest;
+            setupInvalidators();
+        }
+    }
+
+    /** Generate into a writer from the factory, and give the writer back to it. */
+    private byte[] generateFragment() throws IOException, SQLException {
+        final E generated = generate(factory.create());
+        final byte[] text = generated.getBytes();
+        factory.recycle(generated);
+        return compressFragments ? Fragments.compress(text) : text;
+    }
+
+    private final StaleCache.Refresher<K> refresher = new StaleCache.Refresher<K>() {
+        public void refresh(K key) { //on a StaleCache thread, in a transaction of its own.
+            try {
+                final long epoch = Caches.epoch(cache);
+                final byte[] htmlBytes = generateFragment();
+                if (tryWriteLock((StaleCache<K>)cache, key)) fill(key, htmlBytes, epoch); //if not, it stays stale.
+                TmLock.commit();
+            } catch (InterruptedException e) { TmLock.rollback(); } //StaleCache.shutdown()
+            catch (Exception e) { TmLock.rollback(); e.printStackTrace(); }
+        }
+    };
+
+    private static final int REFRESH_TRIES = 5;
+
+    /**
+     * Take the key's write lock without waiting in line for it: a waiting writer would hold up the
+     * new readers of a hot key, which are meant to be served stale meanwhile.  Tries a few times,
+     * as readers come and go.
+     */
+    private static <K> boolean tryWriteLock(StaleCache<K> cache, K key) throws InterruptedException {
+        for (int i = 0; i < REFRESH_TRIES; i++) {
+            if (cache.tryWriteLock(key)) return true;
+            Thread.sleep(10 << i);
         }
+        return false;
     }
 
     /** Override to register the cache with an entry invalidator. */
     public void setupInvalidators() throws SQLException, IOException {}
-}
\ No newline at end of file
+}
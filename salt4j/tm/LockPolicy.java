@@ -0,0 +1,39 @@
+package salt4j.tm;
+
+/**
+ * How a TmLock waits for a contended lock: spin a few times, then park for exponentially longer
+ * periods (a release wakes waiters early), looking for deadlocks after deadlockCheckMillis and
+ * giving up with a LockException after timeoutMillis.
+ */
+public class LockPolicy {
+    public final long timeoutMillis;
+    public final int spins;
+    public final long minParkMicros, maxParkMicros;
+    public final long deadlockCheckMillis;
+
+    public LockPolicy(long timeoutMillis, int spins, long minParkMicros, long maxParkMicros,
+                      long deadlockCheckMillis) {
+        if (minParkMicros <= 0 || maxParkMicros < minParkMicros) throw new IllegalArgumentException();
+        this.timeoutMillis = timeoutMillis; this.spins = spins;
+        this.minParkMicros = minParkMicros; this.maxParkMicros = maxParkMicros;
+        this.deadlockCheckMillis = deadlockCheckMillis;
+    }
+
+    /** Park right away, check for deadlocks after 10ms and give up after 5 seconds. */
+    public static final LockPolicy DEFAULT = new LockPolicy(5000, 0, 10000, 10000, 10);
+
+    /** The default policy with another timeout. */
+    public static LockPolicy timeout(long timeoutMillis) {
+        return new LockPolicy(timeoutMillis, 0, 10000, 10000, 10);
+    }
+
+    /** Spin, then back off from 50 microseconds up to maxParkMicros. */
+    public static LockPolicy backoff(long timeoutMillis, int spins, long maxParkMicros) {
+        return new LockPolicy(timeoutMillis, spins, 50, maxParkMicros, 10);
+    }
+
+    public String toString() {
+        return "LockPolicy(timeout=" + timeoutMillis + "ms, spins=" + spins + ", park=" +
+                minParkMicros + ".." + maxParkMicros + "us, deadlockCheck=" + deadlockCheckMillis + "ms)";
+    }
+}
@@ -0,0 +1,92 @@
+package salt4j.tm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contention counters shared by every TmLock with the same name, e.g. all stripes of a TmCache.
+ * snapshot() lists them all.
+ */
+public class LockStats {
+    public final String name;
+
+    //uncontended acquisitions are counted in 16 cells, 8 longs apart, to keep them off one cache line.
+    private final AtomicLongArray uncontended = new AtomicLongArray(16 * 8);
+    private final AtomicLongArray waits = new AtomicLongArray(32); //i: waited < 2^i microseconds.
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong interrupts = new AtomicLong();
+    private final AtomicLong upgradeFailures = new AtomicLong();
+
+    private LockStats(String name) { this.name = name; }
+
+    private static final ConcurrentHashMap<String, LockStats> ALL = new ConcurrentHashMap<String, LockStats>();
+
+    public static LockStats get(String name) {
+        LockStats stats = ALL.get(name);
+        if (stats == null) {
+            final LockStats newStats = new LockStats(name);
+            stats = ALL.putIfAbsent(name, newStats);
+            if (stats == null) stats = newStats;
+        }
+        return stats;
+    }
+
+    /** Every named lock's statistics, by name. */
+    public static Map<String, LockStats> snapshot() { return new TreeMap<String, LockStats>(ALL); }
+
+    void acquired() { uncontended.incrementAndGet((int)(Thread.currentThread().getId() & 15) << 3); }
+
+    void acquired(long waitedNanos) {
+        waitNanos.addAndGet(waitedNanos);
+        final long micros = waitedNanos / 1000;
+        waits.incrementAndGet(Math.min(31, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    void timedOut(boolean upgrade) { timeouts.incrementAndGet(); if (upgrade) upgradeFailures.incrementAndGet(); }
+    void deadlocked(boolean upgrade) { deadlocks.incrementAndGet(); if (upgrade) upgradeFailures.incrementAndGet(); }
+    void interrupted(boolean upgrade) { interrupts.incrementAndGet(); if (upgrade) upgradeFailures.incrementAndGet(); }
+
+    public long getUncontended() {
+        long n = 0; for (int i = 0; i < 16; i++) n += uncontended.get(i << 3); return n;
+    }
+
+    /** Acquisitions that had to wait. */
+    public long getContended() { long n = 0; for (long w: getWaitHistogram()) n += w; return n; }
+
+    /** Element i counts acquisitions that waited less than 2^i microseconds (and at least 2^(i-1)). */
+    public long[] getWaitHistogram() {
+        final long[] h = new long[waits.length()];
+        for (int i = 0; i < h.length; i++) h[i] = waits.get(i);
+        return h;
+    }
+
+    /** An upper bound on the given percentile (e.g. 0.99) of contended waits, in microseconds. */
+    public long getWaitPercentileMicros(double percentile) {
+        final long[] h = getWaitHistogram();
+        long total = 0; for (long w: h) total += w;
+        long seen = 0;
+        for (int i = 0; i < h.length; i++) {
+            seen += h[i];
+            if (seen > 0 && seen >= percentile * total) return 1L << i;
+        }
+        return 0;
+    }
+
+    public long getWaitNanos() { return waitNanos.get(); }
+    public long getTimeouts() { return timeouts.get(); }
+    public long getDeadlocks() { return deadlocks.get(); }
+    public long getInterrupts() { return interrupts.get(); }
+    public long getUpgradeFailures() { return upgradeFailures.get(); }
+
+    public String toString() {
+        return name + ": uncontended=" + getUncontended() + " contended=" + getContended() +
+                " p99<=" + getWaitPercentileMicros(0.99) + "us timeouts=" + getTimeouts() +
+                " deadlocks=" + getDeadlocks() + " interrupts=" + getInterrupts() +
+                " upgradeFailures=" + getUpgradeFailures();
+    }
+}
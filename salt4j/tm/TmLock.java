@@ -1,139 +1,183 @@
 package salt4j.tm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *  An upgradeable, deadlock-detecting, read-write lock.
+ *
+ *  Each lock keeps its own owners and parks its own waiters; there is no global monitor.
+ *  How long and how a waiter waits is set by a LockPolicy.  A waiter only looks for a deadlock
+ *  after policy.deadlockCheckMillis, and then walks the wait-for graph without stopping the world.
+ *  Only the youngest owner in a cycle aborts.  Contention is recorded in LockStats by name.
  */
 public class TmLock {
-    /** The MAIN class start here */
-    final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
-    int writeLockAcquisitions = 0;
-
-    private final HashSet<Long> owners = new HashSet<Long>();
-    
-    void tryLock(final Lock l, boolean isWriteLock) throws LockException {
-        boolean waitForSet = false;
-        final long giveUpTime = System.currentTimeMillis() + 5000; //this magic number is ugly
-        for(int i = 0; System.currentTimeMillis() < giveUpTime; i++) {
-            if (l.tryLock()) {
-                if (isWriteLock) writeLockAcquisitions ++; // need not be an atomicinteger (wlock guarantee)
-                register();
-                synchronized(DEADLOCK) {
-                    owners.add(Thread.currentThread().getId());
-                    WaitFor.clearMyWaitFor();
-                }                
-                return;
-            } else {
-                synchronized(DEADLOCK) {
-                    if (!waitForSet) { WaitFor.setMyWaitFor(this); waitForSet = true; }
-                    if (!deadLocked()) try { DEADLOCK.wait(); } catch (Exception e){} //no deadlock
-                    else { WaitFor.clearMyWaitFor(); throw new LockException(); }
-                }
+    private static final long NONE = -1;
+
+    private static volatile LockPolicy defaultPolicy = LockPolicy.DEFAULT;
+
+    /** The policy of every lock created without one. */
+    public static void setDefaultPolicy(LockPolicy policy) { defaultPolicy = policy; }
+    public static LockPolicy getDefaultPolicy() { return defaultPolicy; }
+
+    private final LockPolicy policy; //null: use the default policy.
+    private final LockStats stats;
+
+    public TmLock() { this("TmLock", null); }
+
+    /** @param policy null to follow the default policy. */
+    public TmLock(String name, LockPolicy policy) { this.policy = policy; this.stats = LockStats.get(name); }
+
+    public LockStats getStats() { return stats; }
+
+    // Guarded by this.  An owner holding the write lock is not also listed as a reader.
+    private long writer = NONE;
+    private final HashSet<Long> readers = new HashSet<Long>(4);
+    private int waitingWriters = 0; //new readers wait behind them, so writers aren't starved.
+    private final ArrayList<Thread> waiters = new ArrayList<Thread>(2);
+
+    /** Take the lock if possible, or else enlist waiter (if not null) to be unparked on release. */
+    private synchronized boolean tryAcquire(long me, boolean isWriteLock, Thread waiter) {
+        if (writer == me) return true;
+        if (isWriteLock) {
+            if (writer == NONE && (readers.isEmpty() || (readers.size() == 1 && readers.contains(me)))) {
+                readers.remove(me); writer = me; return true; //may upgrade a read lock.
             }
+        } else if (readers.contains(me)) return true;
+        else if (writer == NONE && waitingWriters == 0) { readers.add(me); return true; }
+        if (waiter != null && !waiters.contains(waiter)) waiters.add(waiter); //listed once per wait.
+        return false;
+    }
+
+    private void tryLock(boolean isWriteLock) throws LockException {
+        final Transaction tx = Transaction.current();
+        final long me = tx.id;
+        if (tryAcquire(me, isWriteLock, null)) stats.acquired();
+        else {
+            final LockPolicy p = policy != null ? policy : defaultPolicy;
+            boolean acquired = false;
+            for (int i = 0; i < p.spins && !acquired; i++) { Thread.yield(); acquired = tryAcquire(me, isWriteLock, null); }
+            if (acquired) stats.acquired(); else waitFor(me, isWriteLock, p);
         }
-        WaitFor.clearMyWaitFor(); throw new LockException();
+        tx.locks.add(this);
     }
 
-    private static final Object DEADLOCK = new Object();
-    boolean deadLocked() { return deadLocked(new HashSet<Long>(), Thread.currentThread().getId()); }
-    private boolean deadLocked(HashSet<Long> alreadyChecked, Long currentThread) {
-        synchronized(DEADLOCK) { //stop the world
-            for(Long idThread: owners) {
-                if (idThread == currentThread) return true;
-                else if (!alreadyChecked.contains(idThread)) {
-                    alreadyChecked.add(idThread);
-                    TmLock tm = WaitFor.WAITFOR.get(idThread);
-                    if (tm != null && tm.deadLocked(alreadyChecked, currentThread)) return true;
-                }
+    private void waitFor(long me, boolean isWriteLock, LockPolicy p) throws LockException {
+        final Thread thread = Thread.currentThread();
+        final long start = System.nanoTime();
+        final long checkAfter = TimeUnit.MILLISECONDS.toNanos(p.deadlockCheckMillis);
+        final long giveUp = start + TimeUnit.MILLISECONDS.toNanos(p.timeoutMillis);
+        final long maxPark = TimeUnit.MICROSECONDS.toNanos(p.maxParkMicros);
+        long park = TimeUnit.MICROSECONDS.toNanos(p.minParkMicros);
+        final boolean upgrade;
+        synchronized(this) { upgrade = isWriteLock && readers.contains(me); if (isWriteLock) waitingWriters++; }
+        WAITFOR.put(me, this);
+        try {
+            while (!tryAcquire(me, isWriteLock, thread)) {
+                final long now = System.nanoTime();
+                if (now - giveUp >= 0) { stats.timedOut(upgrade); giveUp(thread); }
+                if (thread.isInterrupted()) { stats.interrupted(upgrade); giveUp(thread); }
+                if (now - start >= checkAfter && isDeadlockVictim(me)) { stats.deadlocked(upgrade); giveUp(thread); }
+                final long untilCheck = now - start < checkAfter ? start + checkAfter - now : park;
+                LockSupport.parkNanos(this, Math.min(Math.min(park, untilCheck), giveUp - now));
+                park = Math.min(park * 2, maxPark);
             }
-            DEADLOCK.notify();
-            return false;
+            stats.acquired(System.nanoTime() - start);
+        } finally {
+            WAITFOR.remove(me);
+            if (isWriteLock) synchronized(this) { if (--waitingWriters == 0) wakeWaiters(); }
         }
     }
 
-    public final void unlockFully() {
-        final int nWriteLocks = rw.getWriteHoldCount();
-        if (nWriteLocks > 0) if (nWriteLocks == 1) rw.writeLock().unlock(); else throw new Error();
-        final int nReadLocks = rw.getReadHoldCount();
-        if (nReadLocks > 0) if (nReadLocks == 1) rw.readLock().unlock(); else throw new Error();
-        synchronized(DEADLOCK) { owners.remove(Thread.currentThread().getId()); DEADLOCK.notify(); }
+    private void giveUp(Thread thread) throws LockException {
+        synchronized(this) { waiters.remove(thread); }
+        throw new LockException();
     }
 
-    private final void upgradeLock() {
-        final int initialWrites = writeLockAcquisitions;
-        unlockFully(); //drop read lock.
-        tryLock(rw.writeLock(), true); //try to acquire write lock immediately.
-        if (writeLockAcquisitions != initialWrites + 1) throw new LockException();
+    private synchronized long[] owners() {
+        final long[] owners = new long[readers.size() + (writer == NONE ? 0 : 1)];
+        int i = 0;
+        for (Long reader: readers) owners[i++] = reader;
+        if (writer != NONE) owners[i] = writer;
+        return owners;
     }
 
-    /** Acquire a write lock. May upgrade a read lock. */
-    public final void write(){
-        if(rw.isWriteLockedByCurrentThread()) return; //only do this once.
-        else if (rw.getReadHoldCount() > 0) upgradeLock(); //read to write lock
-        else tryLock(rw.writeLock(), true); // acquire the lock.
-    }
+    /** Owners (transaction ids) mapped to the lock they are waiting for. */
+    private static final ConcurrentHashMap<Long, TmLock> WAITFOR = new ConcurrentHashMap<Long, TmLock>();
 
-    /** Acquire a read lock. */
-    public final void read() {
-        if (rw.isWriteLockedByCurrentThread()) return;  //write lock supercedes read lock
-        else if(rw.getReadHoldCount()>0) return; //don't acquire a read lock more than once.
-        else tryLock(rw.readLock(), false); //ok, get the lock.
+    /** True if waiting for this lock closes a cycle in which me is the youngest (largest) owner. */
+    private boolean isDeadlockVictim(long me) {
+        return youngestInCycle(me, this, new HashSet<Long>(), true) == me;
     }
 
-    private void register() { LOCKS.get().add(this); }
-
-    public static class LockException extends RuntimeException{
-        public LockException rollback() { return this; }
+    /** The largest owner on a path of waits from lock back to me, or NONE if there is none. */
+    private static long youngestInCycle(long me, TmLock lock, HashSet<Long> visited, boolean direct) {
+        for (long owner: lock.owners()) {
+            if (owner == me) { if (direct) continue; else return me; } //upgrading isn't a cycle.
+            if (!visited.add(owner)) continue;
+            final TmLock next = WAITFOR.get(owner);
+            if (next != null) {
+                final long youngest = youngestInCycle(me, next, visited, false);
+                if (youngest != NONE) return Math.max(youngest, owner);
+            }
+        }
+        return NONE;
     }
 
-    private static ThreadLocal<ArrayList<Runnable>> UNDOLOG = new ThreadLocal<ArrayList<Runnable>>(){
-        protected ArrayList<Runnable> initialValue() { return new ArrayList<Runnable>(); }
-    };
+    private void wakeWaiters() { // caller holds this.
+        for (Thread t: waiters) LockSupport.unpark(t);
+        waiters.clear();
+    }
 
-    private static ThreadLocal<Set<TmLock>> LOCKS = new ThreadLocal<Set<TmLock>>(){
-        protected Set<TmLock> initialValue() { return new HashSet<TmLock>(); }
-    };
+    public final void unlockFully() { release(Transaction.current().id); }
 
-    private static class WaitFor {
-        final static HashMap<Long, TmLock> WAITFOR = new HashMap<Long, TmLock>();
+    /** True if the current transaction holds a read or write lock. */
+    public final boolean isHeld() {
+        final long me = Transaction.current().id;
+        synchronized(this) { return writer == me || readers.contains(me); }
+    }
 
-        static void setMyWaitFor(TmLock lock) {
-            Long threadId = Thread.currentThread().getId();
-            synchronized(DEADLOCK) {
-                WAITFOR.put(threadId, lock);
-                DEADLOCK.notify();
-            }
-        }
+    /** Called once an owner has unlocked this lock at the end of its transaction. */
+    void released() {}
 
-        static void clearMyWaitFor() {
-            Long threadId = Thread.currentThread().getId();
-            synchronized(DEADLOCK) {
-                WAITFOR.remove(threadId);
-                DEADLOCK.notify();
-            }
-        }
+    synchronized void release(long owner) {
+        if (writer == owner) writer = NONE;
+        readers.remove(owner);
+        wakeWaiters();
     }
- 
-    //reverse history with undo log:
-    private static void rollbackWithUndoLog() {
-        ArrayList<Runnable> x = UNDOLOG.get();
-        for (int i=x.size()-1; i>=0; i--) x.get(i).run();
-        x.clear();
+
+    /** Acquire a write lock. May upgrade a read lock. */
+    public final void write(){ tryLock(true); }
+
+    /** Acquire a write lock, or upgrade a read lock, only if that needn't wait.  True if held. */
+    public final boolean tryWrite() {
+        final Transaction tx = Transaction.current();
+        if (!tryAcquire(tx.id, true, null)) return false;
+        stats.acquired();
+        tx.locks.add(this);
+        return true;
     }
 
-    private static void unlockAll() {
-        for (TmLock lock: LOCKS.get()) lock.unlockFully();
-        LOCKS.get().clear();
+    /** Acquire a read lock. */
+    public final void read() { tryLock(false); }
+
+    public static class LockException extends RuntimeException{
+        public LockException rollback() { return this; }
     }
-    public static void rollback() { rollbackWithUndoLog(); unlockAll(); }
 
-    public static void commit() { unlockAll(); }
+    /** Roll back the current transaction: see Transaction. */
+    public static void rollback() { Transaction.current().rollback(); }
+
+    /** Commit the current transaction: see Transaction. */
+    public static void commit() { Transaction.current().commit(); }
 
-    public static void addToUndoLog(Runnable runnable) { UNDOLOG.get().add(runnable); }
-}
\ No newline at end of file
+    public static void addToUndoLog(Runnable runnable) { Transaction.current().addToUndoLog(runnable); }
+
+    /** See UndoLog.Undoable */
+    public static void addToUndoLog(UndoLog.Undoable target, int slot, Object key, Object previous) {
+        Transaction.current().addToUndoLog(target, slot, key, previous);
+    }
+}
@@ -0,0 +1,93 @@
+package salt4j.tm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One TmLock per key, created when a key is first locked and recycled once no transaction holds
+ * or waits for it.  Locks are held until TmLock.commit() or rollback(), like any TmLock.
+ */
+public class TmLockTable<K> {
+    private static final int MAX_POOLED = 1024;
+
+    private final ConcurrentHashMap<K, Entry<K>> table;
+    private final ConcurrentLinkedQueue<Entry<K>> pool = new ConcurrentLinkedQueue<Entry<K>>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final String name; private final LockPolicy policy;
+
+    /** See TmLock(name, policy) */
+    public TmLockTable(int concurrency, String name, LockPolicy policy) {
+        table = new ConcurrentHashMap<K, Entry<K>>(64, 0.75f, concurrency);
+        this.name = name; this.policy = policy;
+    }
+
+    /**
+     * A lock and the number of transactions using it: each holder or waiter pins it once.
+     * refs is -1 once the entry has left the table.
+     */
+    private static final class Entry<K> extends TmLock {
+        final TmLockTable<K> table;
+        volatile K key = null;
+        final AtomicInteger refs = new AtomicInteger();
+
+        Entry(TmLockTable<K> table) { super(table.name, table.policy); this.table = table; }
+
+        void released() { table.unpin(this); }
+    }
+
+    /** Acquire a read lock on key. */
+    public void read(K key) { lock(key, false); }
+
+    /** Acquire a write lock on key.  May upgrade a read lock. */
+    public void write(K key) { lock(key, true); }
+
+    /** Acquire a write lock on key only if that needn't wait; see TmLock.tryWrite() */
+    public boolean tryWrite(K key) {
+        final Entry<K> e = pin(key);
+        final boolean held = e.isHeld();
+        boolean locked = false;
+        try { return locked = e.tryWrite(); }
+        finally { if (held || !locked) unpin(e); }
+    }
+
+    /** The number of keys currently locked or waited for. */
+    public int size() { return table.size(); }
+
+    private void lock(K key, boolean isWriteLock) {
+        final Entry<K> e = pin(key);
+        final boolean held = e.isHeld(); //then the first acquisition's pin is released on commit.
+        boolean locked = false;
+        try {
+            if (isWriteLock) e.write(); else e.read();
+            locked = true;
+        } finally { if (held || !locked) unpin(e); }
+    }
+
+    private Entry<K> pin(K key) {
+        for (;;) {
+            final Entry<K> e = table.get(key);
+            if (e == null) {
+                Entry<K> fresh = pool.poll();
+                if (fresh != null) pooled.decrementAndGet(); else fresh = new Entry<K>(this);
+                fresh.key = key; fresh.refs.set(1);
+                if (table.putIfAbsent(key, fresh) == null) return fresh;
+                //lost the race; don't recycle fresh, a stale reader may be pinning it.
+            } else {
+                final int r = e.refs.get();
+                if (r > 0 && e.refs.compareAndSet(r, r + 1)) {
+                    if (table.get(key) == e) return e;
+                    else unpin(e); //e was recycled for another key after we read it.
+                }
+            }
+        }
+    }
+
+    private void unpin(Entry<K> e) {
+        if (e.refs.decrementAndGet() == 0 && e.refs.compareAndSet(0, -1)) {
+            table.remove(e.key, e);
+            e.key = null;
+            if (pooled.incrementAndGet() <= MAX_POOLED) pool.offer(e); else pooled.decrementAndGet();
+        }
+    }
+}
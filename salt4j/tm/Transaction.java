@@ -0,0 +1,78 @@
+package salt4j.tm;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The locks and undo log of a transaction over TmLocks and TmCaches.  They belong to the
+ * transaction rather than to a thread, so a transaction may move between threads (executor
+ * stages, virtual threads) as long as one thread at a time uses it.
+ *
+ * Every thread has an implicit transaction, which TmLock.commit() and rollback() finish.
+ * An explicit one is used instead while it is attached to the thread:
+ * <pre>
+ * Transaction tx = Transaction.begin(); //attached to this thread.
+ * cache.put(key, value);
+ * tx.detach();
+ * ... on another thread:
+ * tx.attach(); cache.evict(other); tx.commit(); //commit detaches.
+ * </pre>
+ */
+public final class Transaction {
+    private static final AtomicLong IDS = new AtomicLong();
+
+    long id = IDS.incrementAndGet(); //identifies the owner of a TmLock.
+    final HashSet<TmLock> locks = new HashSet<TmLock>();
+    final UndoLog undoLog = new UndoLog();
+
+    private static final ThreadLocal<Transaction> IMPLICIT = new ThreadLocal<Transaction>() {
+        protected Transaction initialValue() { return new Transaction(); }
+    };
+    private static final ThreadLocal<Transaction> ATTACHED = new ThreadLocal<Transaction>();
+
+    /** The transaction attached to this thread, or else the thread's implicit transaction. */
+    public static Transaction current() {
+        final Transaction attached = ATTACHED.get();
+        return attached != null ? attached : IMPLICIT.get();
+    }
+
+    /** Start a new transaction and attach it to this thread. */
+    public static Transaction begin() { return new Transaction().attach(); }
+
+    /** Make this the current transaction of this thread until detach(), commit() or rollback(). */
+    public Transaction attach() {
+        final Transaction attached = ATTACHED.get();
+        if (attached != null && attached != this) throw new IllegalStateException("another transaction is attached");
+        ATTACHED.set(this); return this;
+    }
+
+    /** Stop using this transaction on this thread, e.g. before handing it to another thread. */
+    public void detach() { if (ATTACHED.get() == this) ATTACHED.remove(); }
+
+    public void commit() {
+        undoLog.clear();
+        unlockAll();
+    }
+
+    /** Reverse history with the undo log, then unlock. */
+    public void rollback() {
+        try { undoLog.rollback(); }
+        finally { unlockAll(); }
+    }
+
+    private void unlockAll() {
+        try { for (TmLock lock: locks) { lock.release(id); lock.released(); } }
+        finally {
+            locks.clear();
+            id = IDS.incrementAndGet(); //a fresh owner, should this object be reused.
+            detach();
+        }
+    }
+
+    public void addToUndoLog(Runnable runnable) { undoLog.add(UndoLog.RUNNABLE, 0, runnable, null); }
+
+    /** On rollback, call target.undo(slot, key, previous). */
+    public void addToUndoLog(UndoLog.Undoable target, int slot, Object key, Object previous) {
+        undoLog.add(target, slot, key, previous);
+    }
+}
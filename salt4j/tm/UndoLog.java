@@ -0,0 +1,59 @@
+package salt4j.tm;
+
+import java.util.Arrays;
+
+/**
+ * A transaction's undo log.  Records are (target, slot, key, previous value) tuples kept in flat
+ * arrays that are reused by the next transaction, so logging a change allocates nothing.
+ */
+public final class UndoLog {
+    /** A transactional structure that can restore the previous value of a key, e.g. TmCache. */
+    public interface Undoable {
+        /** Put previous back under key.  slot is whatever the structure logged, e.g. a stripe. */
+        public void undo(int slot, Object key, Object previous);
+    }
+
+    private static final int INITIAL = 16;
+    private static final int RETAINED = 4096; //larger arrays are dropped after the transaction.
+
+    private Undoable[] targets = new Undoable[INITIAL];
+    private int[] slots = new int[INITIAL];
+    private Object[] keys = new Object[INITIAL];
+    private Object[] previous = new Object[INITIAL];
+    private int size = 0;
+
+    public void add(Undoable target, int slot, Object key, Object previousValue) {
+        if (size == targets.length) {
+            final int n = size * 2;
+            targets = Arrays.copyOf(targets, n); slots = Arrays.copyOf(slots, n);
+            keys = Arrays.copyOf(keys, n); previous = Arrays.copyOf(previous, n);
+        }
+        targets[size] = target; slots[size] = slot; keys[size] = key; previous[size] = previousValue;
+        size++;
+    }
+
+    public int size() { return size; }
+
+    /** Undo every record, newest first, then clear. */
+    void rollback() {
+        try { for (int i = size - 1; i >= 0; i--) targets[i].undo(slots[i], keys[i], previous[i]); }
+        finally { clear(); }
+    }
+
+    /** Forget every record. */
+    void clear() {
+        if (targets.length > RETAINED) {
+            targets = new Undoable[INITIAL]; slots = new int[INITIAL];
+            keys = new Object[INITIAL]; previous = new Object[INITIAL];
+        } else if (size > 0) { //let the GC have the keys and values.
+            Arrays.fill(targets, 0, size, null); Arrays.fill(keys, 0, size, null);
+            Arrays.fill(previous, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /** Logs a Runnable as its key. */
+    static final Undoable RUNNABLE = new Undoable() {
+        public void undo(int slot, Object key, Object previous) { ((Runnable)key).run(); }
+    };
+}
@@ -0,0 +1,98 @@
+package salt4j;
+
+import java.sql.SQLException;
+import salt4j.tm.TmLock;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class DbTest {
+    static Db.Pool pool(int size) throws SQLException {
+        FakeDriver.register(); FakeDriver.reset();
+        return new Db.Pool(FakeDriver.URL, size, 2, false, false);
+    }
+
+    public static void testTakeTimesOut() throws Exception {
+        final Db.Pool pool = pool(1);
+        final Db db = pool.take();
+        try { pool.take(20); check(false, "took a second connection"); }
+        catch (Db.Pool.TimeoutException e) {}
+        equal(1L, pool.getTimeouts()); equal(1, pool.getActive());
+        pool.putBack(db);
+        pool.putBack(pool.take(20));
+        equal(0, pool.getActive()); equal(1, pool.getIdle());
+    }
+
+    /** stopMaintenance() returns only after the check in progress, so nothing is left broken. */
+    public static void testStopMaintenanceWaitsForCheck() throws Exception {
+        final Db.Pool pool = pool(4);
+        pool.startMaintenance(0, 10);
+        FakeDriver.pingMillis = 300;
+        final int pings = FakeDriver.pings.get();
+        while (FakeDriver.pings.get() == pings) Thread.sleep(1); //a check is under way.
+        pool.stopMaintenance();
+        final int after = FakeDriver.pings.get();
+        Thread.sleep(50);
+        equal(after, FakeDriver.pings.get());
+        equal(4, pool.getIdle()); equal(0, pool.getBroken());
+    }
+
+    /** A connection whose rollback failed is pinged before it is lent again. */
+    public static void testSuspectConnectionIsPinged() throws Exception {
+        final Db.Pool pool = pool(1);
+        pool.startMaintenance(60000, 60000);
+        final Db db = pool.take();
+        db.dirty = true; FakeDriver.failRollback = true;
+        pool.putBack(db);
+        FakeDriver.failRollback = false;
+        final int pings = FakeDriver.pings.get();
+        pool.putBack(pool.take());
+        equal(pings + 1, FakeDriver.pings.get());
+        pool.stopMaintenance();
+    }
+
+    /** A primary connection that can't be made writable again is replaced, not pooled read-only. */
+    public static void testFailedReadOnlyResetReconnects() throws Exception {
+        final Db.Pool primary = pool(1);
+        final Db.RoutingPool routing = new Db.RoutingPool(primary, 10);
+        final Db db = routing.takeReadOnly();
+        FakeDriver.failSetReadOnly = true;
+        routing.putBack(db);
+        FakeDriver.failSetReadOnly = false;
+        equal(null, db.connection);
+        final int connects = FakeDriver.connects.get();
+        routing.putBack(routing.take());
+        equal(connects + 1, FakeDriver.connects.get());
+    }
+
+    /** A statement evicted from the cache stays open until the transaction ends. */
+    public static void testEvictedStatementsCloseAtCommit() throws Exception {
+        final Db.Pool pool = pool(1);
+        final Db db = pool.take();
+        db.query("SELECT a FROM t WHERE a = ?", 1);
+        db.query("SELECT b FROM t WHERE b = ?", 1);
+        db.query("SELECT c FROM t WHERE c = ?", 1);
+        final FakeDriver.Statement first = FakeDriver.statements.get(0);
+        check(!first.closed, "open during the transaction");
+        db.commit();
+        check(first.closed, "closed at commit");
+        pool.putBack(db);
+    }
+
+    /** The query cache keys on a copy of the parameters, so reusing the array can't corrupt it. */
+    public static void testCachedQueryCopiesParams() throws Exception {
+        final Db.Pool pool = pool(1);
+        pool.setQueryCache(new QueryCache(4));
+        final Db db = pool.take();
+        final String sql = "SELECT v FROM t WHERE v = ?";
+        final Object[] params = {1};
+        equal(1, db.cachedQuery(sql, params).get(0, "v")); TmLock.commit();
+        params[0] = 2;
+        equal(2, db.cachedQuery(sql, params).get(0, "v")); TmLock.commit();
+        equal(1, db.cachedQuery(sql, 1).get(0, "v")); TmLock.commit();
+        equal(2, FakeDriver.queries.get());
+        db.exec("UPDATE t SET v = 3"); TmLock.commit();
+        db.cachedQuery(sql, 1); TmLock.commit();
+        equal(3, FakeDriver.queries.get());
+        pool.putBack(db);
+    }
+}
@@ -0,0 +1,125 @@
+package salt4j;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JDBC driver for urls starting with jdbc:fake: whose connections run nothing.  A query returns
+ * one row with one column, v, holding its first parameter.  Tests set the fields to make
+ * connections slow or failing.
+ */
+final class FakeDriver implements InvocationHandler {
+    static final String URL = "jdbc:fake:";
+
+    static final AtomicInteger connects = new AtomicInteger(), pings = new AtomicInteger(), queries = new AtomicInteger();
+    static volatile long pingMillis = 0; //how long isValid() takes, without noticing interrupts.
+    static volatile boolean failRollback = false, failSetReadOnly = false;
+
+    /** The statements prepared so far, open or closed. */
+    static final ArrayList<Statement> statements = new ArrayList<Statement>();
+
+    static final class Statement {
+        final String sql; volatile boolean closed = false; Object first;
+        Statement(String sql) { this.sql = sql; }
+    }
+
+    private static boolean registered = false;
+
+    static synchronized void register() throws SQLException {
+        if (!registered) DriverManager.registerDriver(proxy(Driver.class, new FakeDriver()));
+        registered = true;
+    }
+
+    static void reset() {
+        connects.set(0); pings.set(0); queries.set(0);
+        pingMillis = 0; failRollback = false; failSetReadOnly = false;
+        synchronized (statements) { statements.clear(); }
+    }
+
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeDriver.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /** What every other method returns: Object's methods by identity, else false, 0 or null. */
+    static Object nothing(Object proxy, Method m, Object[] args) {
+        final String name = m.getName();
+        if (name.equals("equals") && args != null && args.length == 1) return proxy == args[0];
+        if (name.equals("hashCode") && args == null) return System.identityHashCode(proxy);
+        if (name.equals("toString") && args == null) return "fake";
+        final Class<?> t = m.getReturnType();
+        if (t == boolean.class) return Boolean.FALSE;
+        if (t == int.class) return Integer.valueOf(0);
+        if (t == long.class) return Long.valueOf(0);
+        return null;
+    }
+
+    public Object invoke(Object p, Method m, Object[] args) {
+        final String name = m.getName();
+        if (name.equals("acceptsURL")) return ((String)args[0]).startsWith(URL);
+        if (name.equals("connect")) return ((String)args[0]).startsWith(URL) ? connection() : null;
+        return nothing(p, m, args);
+    }
+
+    static Connection connection() {
+        connects.incrementAndGet();
+        return proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws SQLException {
+                final String name = m.getName();
+                if (name.equals("isValid")) {
+                    pings.incrementAndGet();
+                    for (long end = System.currentTimeMillis() + pingMillis; System.currentTimeMillis() < end; ) {}
+                    return true;
+                }
+                if (name.equals("rollback") && failRollback) throw new SQLException("connection lost");
+                if (name.equals("setReadOnly") && failSetReadOnly) throw new SQLException("connection lost");
+                if (name.equals("prepareStatement")) return statement((String)args[0]);
+                return nothing(p, m, args);
+            }
+        });
+    }
+
+    static PreparedStatement statement(String sql) {
+        final Statement s = new Statement(sql);
+        synchronized (statements) { statements.add(s); }
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                final String name = m.getName();
+                if (name.equals("close")) s.closed = true;
+                else if (name.equals("setObject") && ((Integer)args[0]) == 1) s.first = args[1];
+                else if (name.equals("executeQuery")) { queries.incrementAndGet(); return rows(s.first); }
+                else if (name.equals("executeUpdate")) return 1;
+                return nothing(p, m, args);
+            }
+        });
+    }
+
+    static ResultSet rows(final Object v) {
+        final ResultSetMetaData meta = proxy(ResultSetMetaData.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getColumnCount")) return 1;
+                if (m.getName().equals("getColumnLabel")) return "v";
+                return nothing(p, m, args);
+            }
+        });
+        return proxy(ResultSet.class, new InvocationHandler() {
+            boolean before = true;
+            public Object invoke(Object p, Method m, Object[] args) {
+                final String name = m.getName();
+                if (name.equals("getMetaData")) return meta;
+                if (name.equals("next")) { final boolean n = before; before = false; return n; }
+                if (name.equals("getObject")) return v;
+                return nothing(p, m, args);
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package salt4j;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Runs the public static test*() methods of the test classes, each in a fresh transaction.
+ * The tree has no build, so the tests need nothing but the classes under test:
+ * <pre>
+ * javac -encoding UTF-8 -d out -cp servlet-api.jar $(find salt4j test -name "*.java")
+ * java -cp out:servlet-api.jar salt4j.Tests
+ * </pre>
+ */
+public final class Tests {
+    private Tests() {}
+
+    static final Class<?>[] ALL = {
+        salt4j.tm.TmLockTest.class,
+        salt4j.cache.TmCacheTest.class,
+        salt4j.cache.StaleCacheTest.class,
+        salt4j.cache.OffHeapCacheTest.class,
+        salt4j.cache.MappedCacheTest.class,
+        salt4j.cache.evict.EvictorMapTest.class,
+        salt4j.text.TextFetcherTest.class,
+        salt4j.text.HtmlWriterTest.class,
+        salt4j.DbTest.class,
+    };
+
+    public static void check(boolean ok, String what) { if (!ok) throw new AssertionError(what); }
+
+    public static void equal(Object expected, Object actual) {
+        final boolean same = expected == null ? actual == null
+                : expected instanceof byte[] && actual instanceof byte[]
+                ? Arrays.equals((byte[])expected, (byte[])actual) : expected.equals(actual);
+        if (!same) throw new AssertionError("expected " + expected + " but was " + actual);
+    }
+
+    /** The number of tests that failed. */
+    public static int run(Class<?>... classes) {
+        int failed = 0;
+        for (Class<?> c: classes) {
+            for (Method m: c.getMethods()) {
+                if (!m.getName().startsWith("test") || !Modifier.isStatic(m.getModifiers())) continue;
+                final String name = c.getSimpleName() + "." + m.getName();
+                try { m.invoke(null); System.out.println("ok   " + name); }
+                catch (InvocationTargetException e) {
+                    failed++; System.out.println("FAIL " + name); e.getCause().printStackTrace(System.out);
+                } catch (IllegalAccessException e) { throw new RuntimeException(e); }
+                finally { salt4j.tm.TmLock.rollback(); }
+            }
+        }
+        return failed;
+    }
+
+    public static void main(String[] args) {
+        final int failed = run(ALL);
+        System.out.println(failed == 0 ? "all passed" : failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,72 @@
+package salt4j.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class MappedCacheTest {
+    static File directory() throws IOException {
+        final File d = File.createTempFile("salt4j-mapped", "");
+        d.delete(); d.mkdirs(); return d;
+    }
+
+    static void delete(File d) {
+        final File[] files = d.listFiles();
+        if (files != null) for (File f: files) f.delete();
+        d.delete();
+    }
+
+    static byte[] valueOf(String key, int length) {
+        final byte[] b = new byte[length]; Arrays.fill(b, (byte)key.hashCode()); return b;
+    }
+
+    /** A cache on directory d, reopened from a snapshot of one entry written with version 1. */
+    static MappedCache<String> reopen(File d, long version, boolean reload) throws IOException {
+        final MappedCache<String> cache = new MappedCache<String>(d, 4096, 3, 1, false);
+        cache.put("a", valueOf("a", 100)); cache.snapshot();
+        return new MappedCache<String>(d, 4096, 3, version, reload);
+    }
+
+    public static void testReloadOnlyWhenAsked() throws Exception {
+        File d = directory();
+        try { equal(0, reopen(d, 1, false).size()); } finally { delete(d); }
+        d = directory();
+        try { equal(0, reopen(d, 2, true).size()); } finally { delete(d); }
+        d = directory();
+        try { equal(valueOf("a", 100), reopen(d, 1, true).get("a")); } finally { delete(d); }
+    }
+
+    /** Readers never see a value torn by a concurrent put. */
+    public static void testConcurrentReadersAndWriters() throws Exception {
+        final File d = directory();
+        try {
+            final MappedCache<String> cache = new MappedCache<String>(d, 4096, 3);
+            final AtomicInteger bad = new AtomicInteger();
+            final Thread[] threads = new Thread[6];
+            for (int i = 0; i < threads.length; i++) {
+                final int n = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        final Random r = new Random(n);
+                        for (int it = 0; it < 5000; it++) {
+                            final String k = "k" + r.nextInt(50);
+                            if (n < 2) cache.put(k, valueOf(k, 100 + r.nextInt(200)));
+                            else {
+                                final byte[] v = cache.get(k);
+                                if (v != null) for (byte b: v) if (b != (byte)k.hashCode()) { bad.incrementAndGet(); break; }
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread t: threads) t.join();
+            equal(0, bad.get());
+            check(cache.size() > 0, "kept some");
+        } finally { delete(d); }
+    }
+}
@@ -0,0 +1,53 @@
+package salt4j.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class OffHeapCacheTest {
+    static byte[] filled(int length, int value) { final byte[] b = new byte[length]; Arrays.fill(b, (byte)value); return b; }
+
+    public static void testPutGetReplace() {
+        final OffHeapCache<String> cache = new OffHeapCache<String>(2, 1 << 16, 4096);
+        cache.put("a", filled(100, 1)); cache.put("b", filled(3000, 2));
+        equal(filled(100, 1), cache.get("a")); equal(filled(3000, 2), cache.get("b"));
+        cache.put("a", filled(2000, 3));
+        equal(filled(2000, 3), cache.get("a"));
+        cache.put("huge", new byte[5000]);
+        equal(null, cache.get("huge")); check(cache.rejections() == 1, "larger than a slab");
+        cache.evict("a"); equal(null, cache.get("a")); equal(2 - 1, cache.size());
+    }
+
+    /** A slot evicted while a slow channel reads it isn't reused until the write is done. */
+    public static void testEvictWhileWriting() throws Exception {
+        final OffHeapCache<String> cache = new OffHeapCache<String>(1, 4096, 1024);
+        cache.put("a", filled(500, 7));
+        final CountDownLatch writing = new CountDownLatch(1), evicted = new CountDownLatch(1);
+        final byte[][] got = new byte[1][];
+        final Thread slow = new Thread() {
+            public void run() {
+                try {
+                    cache.writeTo("a", new WritableByteChannel() {
+                        public int write(ByteBuffer b) {
+                            writing.countDown();
+                            try { evicted.await(); } catch (InterruptedException e) {}
+                            got[0] = new byte[b.remaining()]; b.get(got[0]); return got[0].length;
+                        }
+                        public boolean isOpen() { return true; }
+                        public void close() {}
+                    });
+                } catch (Exception e) { e.printStackTrace(); }
+            }
+        };
+        slow.start(); writing.await();
+        final long start = System.nanoTime();
+        cache.evict("a");
+        for (int i = 0; i < 20; i++) cache.put("k" + i, filled(500, 9));
+        check(System.nanoTime() - start < 1000000000L, "the write doesn't hold the segment");
+        evicted.countDown(); slow.join();
+        equal(filled(500, 7), got[0]);
+    }
+}
@@ -0,0 +1,39 @@
+package salt4j.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import salt4j.tm.TmLock;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class StaleCacheTest {
+    static final class Counter implements StaleCache.Refresher<String> {
+        final CountDownLatch done = new CountDownLatch(1); volatile int n = 0;
+        public void refresh(String key) { n++; done.countDown(); }
+    }
+
+    public static void testEvictServesStaleAndRefreshes() throws Exception {
+        final StaleCache<String> cache = new StaleCache<String>(new TmCache<String, StaleCache.Entry>(4), 0, 1, 1);
+        cache.put("k", "v".getBytes("UTF-8")); TmLock.commit();
+        cache.evict("k"); TmLock.commit();
+        final Counter counter = new Counter();
+        equal("v", new String(cache.get("k", counter), "UTF-8"));
+        check(counter.done.await(5, TimeUnit.SECONDS), "refreshed");
+        check(cache.isStale("k"), "stale until refreshed");
+        cache.shutdown();
+    }
+
+    public static void testRolledBackEvictLeavesEntryFresh() throws Exception {
+        final StaleCache<String> cache = new StaleCache<String>(new TmCache<String, StaleCache.Entry>(4), 0, 1, 1);
+        cache.put("k", "v".getBytes("UTF-8")); TmLock.commit();
+        cache.evict("k"); check(cache.isStale("k"), "stale in the transaction");
+        TmLock.rollback();
+        check(!cache.isStale("k"), "fresh after rollback");
+        cache.evictAll(java.util.Arrays.asList("k")); TmLock.rollback();
+        check(!cache.isStale("k"), "fresh after evictAll rolls back");
+        final Counter counter = new Counter();
+        cache.get("k", counter); TmLock.commit();
+        check(!counter.done.await(100, TimeUnit.MILLISECONDS), "not refreshed");
+        cache.shutdown();
+    }
+}
@@ -0,0 +1,56 @@
+package salt4j.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import salt4j.tm.TmLock;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class TmCacheTest {
+    public static void testRollbackUndoesInReverse() {
+        final TmCache<String, String> cache = new TmCache<String, String>(4);
+        cache.put("a", "1"); cache.put("b", "1"); TmLock.commit();
+        for (int i = 2; i < 100; i++) cache.put("a", String.valueOf(i));
+        cache.evict("b"); cache.put("c", "1");
+        TmLock.rollback();
+        equal("1", cache.get("a")); equal("1", cache.get("b")); equal(null, cache.get("c"));
+    }
+
+    public static void testBulkOperationsRollBack() {
+        final TmCache<String, String> cache = new TmCache<String, String>(4);
+        cache.put("a", "1"); cache.put("b", "1"); TmLock.commit();
+        final long epoch = cache.epoch();
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        entries.put("b", "2"); entries.put("c", "2");
+        cache.putAll(entries); cache.evictAll(Arrays.asList("a"));
+        final Map<String, String> got = cache.getAll(Arrays.asList("a", "b", "c", "d"));
+        equal(2, got.size()); equal("2", got.get("b")); equal("2", got.get("c"));
+        check(cache.epoch() != epoch, "evictAll counts in the epoch");
+        TmLock.rollback();
+        equal("1", cache.get("a")); equal("1", cache.get("b")); equal(null, cache.get("c"));
+    }
+
+    /** Keys are locked one by one, so writers of different keys in one stripe don't wait. */
+    public static void testOtherKeysOfAStripeDontWait() throws Exception {
+        final TmCache<String, String> cache = new TmCache<String, String>(1);
+        cache.put("a", "1");
+        final boolean[] put = new boolean[1];
+        final Thread t = new Thread() {
+            public void run() { cache.put("b", "2"); put[0] = cache.tryWriteLock("b"); TmLock.commit(); }
+        };
+        t.start(); t.join(2000);
+        check(put[0], "b written while a is locked");
+        check(cache.tryWriteLock("a"), "a is still ours");
+        TmLock.commit();
+        equal("1", cache.get("a")); equal("2", cache.get("b"));
+    }
+
+    public static void testBoundedKeepsToWeight() {
+        final TmCache<Integer, byte[]> cache = TmCache.bounded(1, 10000, Weigher.BYTE_ARRAYS);
+        for (int i = 0; i < 100; i++) { cache.put(i, new byte[1000]); TmLock.commit(); }
+        check(cache.weight() <= 10000, "weight " + cache.weight());
+        check(cache.evictions() > 0, "evicted");
+        check(cache.get(99) != null, "the newest entry stays");
+    }
+}
@@ -0,0 +1,44 @@
+package salt4j.cache.evict;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import salt4j.cache.TmCache;
+import salt4j.tm.TmLock;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class EvictorMapTest {
+    /** Rolling back an eviction restores the entries and their registrations. */
+    public static void testRollbackRegistersAgain() {
+        final TmCache<String, String> cache = new TmCache<String, String>(4);
+        final EvictorMap<String, String> tables = new EvictorMap<String, String>(cache);
+        final SortedEvictor<Integer, String> sorted = new SortedEvictor<Integer, String>(cache);
+        cache.put("a", "1"); tables.register("t", "a"); cache.put("b", "2"); sorted.register(5, "b"); TmLock.commit();
+        tables.evictAll(Arrays.asList("t")); sorted.evictAbove(1, true);
+        TmLock.rollback();
+        equal("1", cache.get("a")); equal("2", cache.get("b")); TmLock.commit();
+        tables.evictAll(Arrays.asList("t")); sorted.evictAbove(1, true); TmLock.commit();
+        equal(null, cache.get("a")); equal(null, cache.get("b"));
+    }
+
+    /** An eviction waiting for a key's lock doesn't hold the map, so registering doesn't wait. */
+    public static void testRegisterDoesNotWaitForEviction() throws Exception {
+        final TmCache<String, String> cache = new TmCache<String, String>(4);
+        final EvictorMap<String, String> tables = new EvictorMap<String, String>(cache);
+        cache.put("a", "1"); tables.register("t", "a"); TmLock.commit();
+        cache.get("a"); //holds the read lock of a.
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread evictor = new Thread() {
+            public void run() {
+                started.countDown();
+                try { tables.evict("t"); TmLock.commit(); } catch (TmLock.LockException e) { TmLock.rollback(); }
+            }
+        };
+        evictor.start(); started.await(); Thread.sleep(100);
+        final long start = System.nanoTime();
+        tables.register("t", "b");
+        check(System.nanoTime() - start < 50000000L, "register didn't wait");
+        TmLock.commit(); evictor.join();
+        equal(null, cache.get("a"));
+    }
+}
@@ -0,0 +1,72 @@
+package salt4j.text;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import salt4j.cache.OffHeapCache;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class HtmlWriterTest {
+    static String unzip(byte[] gzip) throws Exception {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    static String rows(int n) {
+        final StringBuilder s = new StringBuilder();
+        for (int i = 0; i < n; i++) s.append("<li>row ").append(i).append(" ünïcode ☃</li>");
+        return s.toString();
+    }
+
+    public static void testEscape() throws Exception {
+        final String s = "<a href=\"x\">Tom & Jerry</a> é☃😀";
+        equal("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&lt;/a&gt; é☃😀",
+              new HtmlWriter().escape(s).getString());
+        equal(s, new HtmlWriter().echo(s).getString());
+    }
+
+    public static void testFormat() throws Exception {
+        final Template t = Template.compile("<b>{?}</b>");
+        equal("<p>&lt;i&gt; 5 1.5</p>", new HtmlWriter().format("<p>{?} {?} {?}</p>", "<i>", 5, 1.5f).getString());
+        equal("<b>7</b><b>x</b><b>2.5</b>", new HtmlWriter().format(t, 7).format(t, 'x').format(t, 2.5).getString());
+        equal("<b>{?}</b><b>{?}</b><b>{?}</b>",
+              new HtmlWriter().format(t, (Integer)null).format(t, (Double)null).format(t, (Character)null).getString());
+    }
+
+    /** Compressed fragments are spliced into the gzip stream, and decompress to the same text. */
+    public static void testGzipSplicesFragments() throws Exception {
+        final String rows = rows(2000);
+        final HtmlWriter w = new HtmlWriter(true);
+        w.echo("<html>").writeFragment(Fragments.compress(rows.getBytes("UTF-8")))
+         .echo("<hr>").writeFragment(rows.getBytes("UTF-8")).echo("</html>");
+        final String text = "<html>" + rows + "<hr>" + rows + "</html>";
+        equal(text, w.getString());
+        equal(text, unzip(w.gzip().toByteArray()));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(); w.writeTo(out);
+        equal(text, new String(out.toByteArray(), "UTF-8"));
+        w.release();
+    }
+
+    /** Off-heap fragments kept by reference stay intact after they are evicted, until released. */
+    public static void testKeptFragmentsOutliveEviction() throws Exception {
+        final String rows = rows(2000);
+        final OffHeapCache<String> cache = new OffHeapCache<String>(1, 1 << 20, 1 << 17);
+        cache.put("z", Fragments.compress(rows.getBytes("UTF-8"))); cache.put("u", rows.getBytes("UTF-8"));
+        final HtmlWriter w = new HtmlWriter(true);
+        w.echo("<html>"); cache.writeTo("z", w.channel()); w.echo("<hr>"); cache.writeTo("u", w.channel()); w.echo("</html>");
+        final String text = "<html>" + rows + "<hr>" + rows + "</html>";
+        cache.evict("z"); cache.evict("u");
+        for (int i = 0; i < 50; i++) cache.put("f" + i, new byte[100000]);
+        equal(text, w.getString());
+        equal(text, unzip(w.gzip().toByteArray()));
+        w.release();
+        final long rejections = cache.rejections();
+        for (int i = 0; i < 50; i++) cache.put("g" + i, new byte[100000]);
+        check(cache.rejections() == rejections, "released slots are reused");
+    }
+}
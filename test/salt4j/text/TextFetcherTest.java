@@ -0,0 +1,111 @@
+package salt4j.text;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import salt4j.cache.Cache;
+import salt4j.cache.StaleCache;
+import salt4j.cache.TmCache;
+import salt4j.cache.evict.Evictor;
+import salt4j.core.Factory;
+import salt4j.tm.TmLock;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class TextFetcherTest {
+    static final Factory<HtmlWriter> WRITERS = new Factory<HtmlWriter>() {
+        public HtmlWriter create() { return new HtmlWriter(); }
+    };
+
+    /** Generates key's text after sleeping, and registers key with evictor. */
+    static class Fetcher extends TextFetcher<HtmlWriter, String> {
+        final String key; final Evictor<String> evictor; final AtomicInteger generated; final long sleepMillis;
+        Fetcher(Cache<String, byte[]> cache, String key, Evictor<String> evictor, AtomicInteger generated, long sleepMillis) {
+            super(cache, WRITERS, WRITERS.create());
+            this.key = key; this.evictor = evictor; this.generated = generated; this.sleepMillis = sleepMillis;
+        }
+        protected HtmlWriter generate(HtmlWriter w) throws IOException {
+            try { Thread.sleep(sleepMillis); } catch (InterruptedException e) {}
+            return w.echo(key).echo(" #").echo(generated.incrementAndGet());
+        }
+        public void setupInvalidators() { if (evictor != null) evictor.register(key); }
+        String fetch() throws Exception { return fetch(key).getString(); }
+    }
+
+    public static void testConcurrentMissesGenerateOnce() throws Exception {
+        final TmCache<String, byte[]> cache = new TmCache<String, byte[]>(4);
+        final AtomicInteger generated = new AtomicInteger();
+        final String[] got = new String[8];
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[got.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try { go.await(); got[n] = new Fetcher(cache, "k", null, generated, 50).fetch(); TmLock.commit(); }
+                    catch (Exception e) { TmLock.rollback(); e.printStackTrace(); }
+                }
+            };
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t: threads) t.join();
+        equal(1, generated.get());
+        for (String s: got) equal("k #1", s);
+    }
+
+    /** Fetchers and evictors of the same keys neither deadlock nor wait each other out. */
+    public static void testFetchersAndEvictorsFinish() throws Exception {
+        final TmCache<String, byte[]> cache = new TmCache<String, byte[]>(4);
+        final Evictor<String> evictor = new Evictor<String>(cache);
+        final AtomicInteger generated = new AtomicInteger(), errors = new AtomicInteger();
+        final Thread[] threads = new Thread[9];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    final Random r = new Random(n);
+                    for (int it = 0; it < 100; it++) {
+                        final String key = "k" + r.nextInt(3);
+                        try {
+                            if (n % 3 == 0) { cache.get(key); Thread.sleep(1); evictor.evict(); }
+                            else new Fetcher(cache, key, evictor, generated, 1).fetch();
+                            TmLock.commit();
+                        } catch (TmLock.LockException e) { TmLock.rollback(); }
+                        catch (Exception e) { TmLock.rollback(); errors.incrementAndGet(); e.printStackTrace(); }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t: threads) t.join(30000);
+        for (Thread t: threads) check(!t.isAlive(), "finished");
+        equal(0, errors.get());
+    }
+
+    /** A stale hit is served at once while another transaction holds the key. */
+    public static void testStaleHitDoesNotWait() throws Exception {
+        final StaleCache<String> cache = new StaleCache<String>(new TmCache<String, StaleCache.Entry>(4), 0, 2, 10);
+        final Evictor<String> evictor = new Evictor<String>(cache);
+        final AtomicInteger generated = new AtomicInteger();
+        equal("k #1", new Fetcher(cache, "k", evictor, generated, 0).fetch()); TmLock.commit();
+        evictor.evict(); TmLock.commit();
+        final CountDownLatch held = new CountDownLatch(1), done = new CountDownLatch(1);
+        final Thread holder = new Thread() {
+            public void run() {
+                try { new Fetcher(cache, "k", evictor, generated, 0).fetch(); held.countDown(); done.await(); }
+                catch (Exception e) { e.printStackTrace(); }
+                finally { TmLock.commit(); }
+            }
+        };
+        holder.start(); held.await();
+        for (int i = 0; i < 3; i++) {
+            final long start = System.nanoTime();
+            new Fetcher(cache, "k", evictor, generated, 0).fetch(); TmLock.commit();
+            check(System.nanoTime() - start < 200000000L, "stale hit served without waiting");
+        }
+        done.countDown(); holder.join();
+        cache.shutdown();
+    }
+}
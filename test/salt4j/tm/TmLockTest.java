@@ -0,0 +1,77 @@
+package salt4j.tm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import salt4j.cache.TmCache;
+import static salt4j.Tests.check;
+import static salt4j.Tests.equal;
+
+public class TmLockTest {
+    /** Two transactions locking two locks in opposite orders: exactly one of them aborts. */
+    public static void testDeadlockAbortsOne() throws Exception {
+        final TmLock a = new TmLock("test-a", LockPolicy.timeout(10000)), b = new TmLock("test-b", LockPolicy.timeout(10000));
+        final CountDownLatch locked = new CountDownLatch(2);
+        final AtomicInteger aborted = new AtomicInteger(), committed = new AtomicInteger();
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final TmLock first = i == 0 ? a : b, second = i == 0 ? b : a;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        first.write(); locked.countDown(); locked.await();
+                        second.write(); TmLock.commit(); committed.incrementAndGet();
+                    } catch (TmLock.LockException e) { TmLock.rollback(); aborted.incrementAndGet(); }
+                    catch (InterruptedException e) { TmLock.rollback(); }
+                }
+            };
+            threads[i].start();
+        }
+        final long start = System.currentTimeMillis();
+        for (Thread t: threads) t.join();
+        equal(1, aborted.get()); equal(1, committed.get());
+        check(System.currentTimeMillis() - start < 5000, "found the deadlock before the timeout");
+    }
+
+    public static void testTimeout() throws Exception {
+        final TmLock lock = new TmLock("test-timeout", LockPolicy.timeout(50));
+        lock.write();
+        final AtomicInteger timedOut = new AtomicInteger();
+        final Thread t = new Thread() {
+            public void run() {
+                try { lock.read(); TmLock.commit(); }
+                catch (TmLock.LockException e) { TmLock.rollback(); timedOut.incrementAndGet(); }
+            }
+        };
+        t.start(); t.join(5000);
+        equal(1, timedOut.get());
+        check(lock.getStats().getTimeouts() >= 1, "timeout recorded");
+        TmLock.commit();
+        check(!t.isAlive(), "waiter gave up");
+    }
+
+    public static void testTryWriteDoesNotWait() throws Exception {
+        final TmLock lock = new TmLock();
+        final Thread t = new Thread() { public void run() { lock.read(); } }; //never commits.
+        t.start(); t.join();
+        final long start = System.nanoTime();
+        check(!lock.tryWrite(), "held by another transaction");
+        check(System.nanoTime() - start < 1000000000L, "didn't wait");
+    }
+
+    /** A transaction's locks and undo log follow it from thread to thread. */
+    public static void testTransactionMovesBetweenThreads() throws Exception {
+        final TmCache<String, String> cache = new TmCache<String, String>(1);
+        cache.put("k", "before"); TmLock.commit();
+        final Transaction tx = Transaction.begin();
+        cache.put("k", "during");
+        tx.detach();
+        final String[] seen = new String[1];
+        final Thread t = new Thread() {
+            public void run() { tx.attach(); seen[0] = cache.get("k"); tx.rollback(); }
+        };
+        t.start(); t.join();
+        equal("during", seen[0]);
+        equal("before", cache.get("k"));
+        check(cache.tryWriteLock("k"), "locks released by the other thread");
+    }
+}